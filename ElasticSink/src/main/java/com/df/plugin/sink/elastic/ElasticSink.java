@@ -70,7 +70,7 @@ public class ElasticSink extends SinkPluginAdapter{
 				}else{
 					log.info("call parseAndBatchSend...");
 					while(flow.sinkStart) {
-						Boolean flag=elasticService.parseAndBatchSend(filterToSinkChannel.get(elasticConfig.batchMaxWaitMills));
+						Boolean flag=elasticService.parseAndBatchSend(filterToSinkChannel.get(elasticService.getLingerMills()));
 						if(null!=flag && !flag) return false;
 					}
 				}
@@ -86,7 +86,7 @@ public class ElasticSink extends SinkPluginAdapter{
 				}else{
 					log.info("call noParseAndBatchSend...");
 					while(flow.sinkStart) {
-						Boolean flag=elasticService.noParseAndBatchSend(filterToSinkChannel.get(elasticConfig.batchMaxWaitMills));
+						Boolean flag=elasticService.noParseAndBatchSend(filterToSinkChannel.get(elasticService.getLingerMills()));
 						if(null!=flag && !flag) return false;
 					}
 				}
@@ -3,6 +3,8 @@ package com.df.plugin.sink.elastic.config;
 import java.io.File;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -19,10 +21,17 @@ import org.apache.http.client.CredentialsProvider;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.message.BasicHeader;
+import org.elasticsearch.client.Node;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClient.FailureListener;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestClientBuilder.HttpClientConfigCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.df.plugin.sink.elastic.util.BulkController;
+import com.df.plugin.sink.elastic.util.IndexRouter;
+import com.df.plugin.sink.elastic.util.NodeSniffer;
 import com.github.lixiang2114.flow.comps.Flow;
 import com.github.lixiang2114.flow.util.CommonUtil;
 import com.github.lixiang2114.flow.util.PropertiesReader;
@@ -53,6 +62,26 @@ public class ElasticConfig {
 	 */
 	public String indexField;
 	
+	/**
+	 * 索引名模式(时间格式置于花括号中,如:logs-{yyyy.MM.dd})
+	 */
+	public String indexPattern;
+	
+	/**
+	 * 按索引名模式路由时使用的文档时间字段(为空时使用当前时间)
+	 */
+	public String indexTimeField;
+	
+	/**
+	 * 下一个时间窗口索引的提前创建时间(为0时不提前创建)
+	 */
+	public Long indexPrecreateMills;
+	
+	/**
+	 * 时间窗口索引路由器
+	 */
+	public IndexRouter indexRouter;
+	
 	/**
 	 * 处理记录中的索引类型名
 	 */
@@ -151,6 +180,59 @@ public class ElasticConfig {
 	 */
 	public Set<Object> preFailSinkSet;
 	
+	/**
+	 * 最大在途批量请求数量
+	 */
+	public Integer maxInFlightBulks;
+	
+	/**
+	 * 批次字节数上限
+	 */
+	public Integer bulkMaxBytes;
+	
+	/**
+	 * 批次字节数下限(亦为窗口增长步长)
+	 */
+	public Integer bulkMinBytes;
+	
+	/**
+	 * 批量请求目标响应延时
+	 */
+	public Long bulkTargetMills;
+	
+	/**
+	 * 批量发送自适应控制器
+	 */
+	public BulkController bulkController;
+	
+	/**
+	 * 批量文档版本冲突(409)处理策略
+	 * ignore: 忽略冲突文档
+	 * retry: 重试冲突文档
+	 * deadLetter: 写入死信文件
+	 */
+	public String conflictPolicy;
+	
+	/**
+	 * 死信文件(存放无法写入的批量文档,NDJSON格式可直接回放到_bulk接口)
+	 */
+	public File deadLetterFile;
+	
+	/**
+	 * 是否以gzip压缩批量请求体
+	 */
+	public boolean compression;
+	
+	/**
+	 * 节点嗅探时间间隔(为0时不嗅探)
+	 */
+	public Long sniffIntervalMills;
+	
+	/**
+	 * 集群节点嗅探器
+	 */
+	public NodeSniffer nodeSniffer;
+	
 	/**
 	 * 是否可用认证缓存(默认可用)
 	 */
@@ -176,6 +258,16 @@ public class ElasticConfig {
      */
 	private static final Pattern IP_REGEX=Pattern.compile("^\\d+\\.\\d+\\.\\d+\\.\\d+$");
 	
+	/**
+	 * 冲突策略取值集合
+	 */
+	private static final Set<String> CONFLICT_POLICIES=new HashSet<String>(Arrays.asList("ignore","retry","deadLetter"));
+	
+	/**
+	 * 日志工具
+	 */
+	private static final Logger log=LoggerFactory.getLogger(ElasticConfig.class);
+	
 	public ElasticConfig(){}
 	
 	public ElasticConfig(Flow flow) {
@@ -208,6 +300,17 @@ public class ElasticConfig {
 		
 		this.timeZone=config.getProperty("timeZone","").trim();
 		
+		String indexPatternStr=config.getProperty("indexPattern","").trim();
+		this.indexPattern=indexPatternStr.isEmpty()?null:indexPatternStr;
+		
+		String indexTimeFieldStr=config.getProperty("indexTimeField","").trim();
+		this.indexTimeField=indexTimeFieldStr.isEmpty()?null:indexTimeFieldStr;
+		
+		String indexPrecreateMillStr=config.getProperty("indexPrecreateMills","").trim();
+		this.indexPrecreateMills=indexPrecreateMillStr.isEmpty()?600000:Long.parseLong(indexPrecreateMillStr);
+		
+		if(null!=indexPattern) indexRouter=new IndexRouter(indexPattern,timeZone.isEmpty()?ZoneId.systemDefault():ZoneOffset.of(timeZone));
+		
 		String numFieldStr=config.getProperty("numFields","").trim();
 		this.numFieldSet=numFieldStr.isEmpty()?new HashSet<String>():Arrays.stream(COMMA_REGEX.split(numFieldStr)).map(e->e.trim()).collect(Collectors.toSet());
 		
@@ -234,6 +337,36 @@ public class ElasticConfig {
 		String batchSizeStr=config.getProperty("batchSize","").trim();
 		if(!batchSizeStr.isEmpty()) this.batchSize=Integer.parseInt(batchSizeStr);
 		
+		String maxInFlightBulksStr=config.getProperty("maxInFlightBulks","").trim();
+		this.maxInFlightBulks=maxInFlightBulksStr.isEmpty()?1:Integer.parseInt(maxInFlightBulksStr);
+		
+		String bulkMaxBytesStr=config.getProperty("bulkMaxBytes","").trim();
+		this.bulkMaxBytes=bulkMaxBytesStr.isEmpty()?5*1024*1024:Integer.parseInt(bulkMaxBytesStr);
+		
+		String bulkMinBytesStr=config.getProperty("bulkMinBytes","").trim();
+		this.bulkMinBytes=bulkMinBytesStr.isEmpty()?256*1024:Integer.parseInt(bulkMinBytesStr);
+		
+		String bulkTargetMillStr=config.getProperty("bulkTargetMills","").trim();
+		this.bulkTargetMills=bulkTargetMillStr.isEmpty()?3000:Long.parseLong(bulkTargetMillStr);
+		
+		this.bulkController=new BulkController(bulkMinBytes,bulkMaxBytes,maxInFlightBulks,bulkTargetMills);
+		
+		String conflictPolicyStr=config.getProperty("conflictPolicy","").trim();
+		this.conflictPolicy=conflictPolicyStr.isEmpty()?"ignore":conflictPolicyStr;
+		if(!CONFLICT_POLICIES.contains(conflictPolicy)) {
+			log.error("Wrong Conflict Policy: "+conflictPolicy+",Support Conflict Policy:"+CONFLICT_POLICIES);
+			throw new RuntimeException("Wrong Conflict Policy: "+conflictPolicy+",Support Conflict Policy:"+CONFLICT_POLICIES);
+		}
+		
+		String deadLetterFileStr=config.getProperty("deadLetterFile","").trim();
+		this.deadLetterFile=deadLetterFileStr.isEmpty()?new File(sinkPath,"deadLetter.ndjson"):new File(deadLetterFileStr);
+		
+		String compressionStr=config.getProperty("compression","").trim();
+		this.compression=compressionStr.isEmpty()?false:Boolean.parseBoolean(compressionStr);
+		
+		String sniffIntervalMillStr=config.getProperty("sniffIntervalMills","").trim();
+		this.sniffIntervalMills=sniffIntervalMillStr.isEmpty()?0:Long.parseLong(sniffIntervalMillStr);
+		
 		String idFieldStr=config.getProperty("idField","").trim();
 		if(!idFieldStr.isEmpty()) this.idField=idFieldStr;
 		
@@ -273,8 +406,24 @@ public class ElasticConfig {
 		    });
 		}
 		
+		if(0<sniffIntervalMills) {
+			builder.setFailureListener(new FailureListener() {
+				public void onFailure(Node node) {
+					if(null!=nodeSniffer) nodeSniffer.sniffOnFailure();
+				}
+			});
+		}
+		
 		restClient=builder.build();
 		
+		if(0<sniffIntervalMills) {
+			String scheme=Arrays.stream(hostList).filter(host->null!=host).map(HttpHost::getSchemeName).findFirst().orElse("http");
+			nodeSniffer=new NodeSniffer(restClient,scheme,sniffIntervalMills);
+			nodeSniffer.start();
+		}
+		
+		if(null!=indexRouter && 0<indexPrecreateMills) indexRouter.startPrecreate(restClient, indexPrecreateMills);
+		
 		return this;
 	}
 	
@@ -288,13 +437,19 @@ public class ElasticConfig {
 		for(int i=0;i<hosts.length;i++){
 			String host=hosts[i].trim();
 			if(host.isEmpty()) continue;
+			String scheme="http";
+			int schemeIndex=host.indexOf("://");
+			if(-1!=schemeIndex) {
+				scheme=host.substring(0, schemeIndex).trim().toLowerCase();
+				host=host.substring(schemeIndex+3).trim();
+			}
 			String[] ipAndPort=COLON_REGEX.split(host);
 			if(ipAndPort.length>=2){
 				String ip=ipAndPort[0].trim();
 				String port=ipAndPort[1].trim();
 				if(!IP_REGEX.matcher(ip).matches()) continue;
 				if(!NUMBER_REGEX.matcher(port).matches()) continue;
-				hostList[i]=new HttpHost(ip, Integer.parseInt(port), "http");
+				hostList[i]=new HttpHost(ip, Integer.parseInt(port), scheme);
 				continue;
 			}
 			
@@ -302,9 +457,9 @@ public class ElasticConfig {
 			
 			String unknow=ipAndPort[0].trim();
 			if(NUMBER_REGEX.matcher(unknow).matches()){
-				hostList[i]=new HttpHost("127.0.0.1", Integer.parseInt(unknow), "http");
+				hostList[i]=new HttpHost("127.0.0.1", Integer.parseInt(unknow), scheme);
 			}else if(IP_REGEX.matcher(unknow).matches()){
-				hostList[i]=new HttpHost(unknow, 9200, "http");
+				hostList[i]=new HttpHost(unknow, 9200, scheme);
 			}
 		}
 	}
@@ -390,11 +545,28 @@ public class ElasticConfig {
 		map.put("passWord", passWord);
 		map.put("userName", userName);
 		map.put("indexField", indexField);
+		map.put("indexPattern", indexPattern);
+		map.put("indexTimeField", indexTimeField);
+		map.put("indexPrecreateMills", indexPrecreateMills);
 		map.put("defaultType", defaultType);
 		map.put("defaultIndex", defaultIndex);
 		map.put("fieldSeparator", fieldSeparator);
 		map.put("maxRetryTimes", maxRetryTimes);
+		map.put("conflictPolicy", conflictPolicy);
+		map.put("maxInFlightBulks", maxInFlightBulks);
+		map.put("bulkMaxBytes", bulkMaxBytes);
+		map.put("bulkMinBytes", bulkMinBytes);
+		map.put("bulkTargetMills", bulkTargetMills);
+		map.put("bulkWindowBytes", bulkController.getWindowBytes());
+		map.put("inFlightLimit", bulkController.getInFlightLimit());
+		map.put("inFlightBulks", bulkController.getInFlight());
+		map.put("bulkLatencyMills", bulkController.getAvgLatencyMills());
+		map.put("rejectedBulks", bulkController.getRejectedBulks());
+		map.put("deadLetterFile", deadLetterFile);
 		map.put("hostList", Arrays.toString(hostList));
+		map.put("compression", compression);
+		map.put("sniffIntervalMills", sniffIntervalMills);
+		map.put("nodeList", restClient.getNodes().toString());
 		map.put("failMaxWaitMills", failMaxWaitMills);
 		map.put("batchMaxWaitMills", batchMaxWaitMills);
 		map.put("preFailSinkSetSize", preFailSinkSet.size());
@@ -0,0 +1,181 @@
+package com.df.plugin.sink.elastic.dto;
+
+import java.util.Arrays;
+
+import com.df.plugin.sink.elastic.util.ElasticUtil;
+import com.df.plugin.sink.elastic.util.JsonBuffer;
+
+/**
+ * @author Lixiang
+ * @description 批量任务(一次_bulk请求及其重试状态)
+ * 批量请求体直接写入可复用的字节缓冲区,任务结束后可重置复用
+ */
+public class BulkTask {
+	/**
+	 * 待发送文档数量
+	 */
+	public int size;
+
+	/**
+	 * 已重试次数
+	 */
+	public int times;
+
+	/**
+	 * 首个文档加入时间
+	 */
+	public long firstMills;
+
+	/**
+	 * 本次发送时间
+	 */
+	public long sendMills;
+
+	/**
+	 * 本次发送是否存在被拒绝(429)的文档
+	 */
+	public boolean rejected;
+
+	/**
+	 * 文档键表
+	 */
+	public String[] docKeys;
+
+	/**
+	 * 批量请求体(NDJSON格式)
+	 */
+	public JsonBuffer buffer;
+
+	/**
+	 * 死信文档(NDJSON格式)
+	 */
+	public JsonBuffer deadLetters=new JsonBuffer(1024);
+
+	/**
+	 * 文档项起始位置表(操作元数据行起始位置)
+	 */
+	private int[] itemStarts;
+
+	/**
+	 * 文档行起始位置表
+	 */
+	private int[] sourceStarts;
+
+	/**
+	 * 文档项结束位置表(含换行符)
+	 */
+	private int[] itemEnds;
+
+	public BulkTask(int capacity,int bufferBytes) {
+		this.docKeys=new String[capacity];
+		this.itemStarts=new int[capacity];
+		this.sourceStarts=new int[capacity];
+		this.itemEnds=new int[capacity];
+		this.buffer=new JsonBuffer(bufferBytes);
+	}
+
+	/**
+	 * 开始添加文档(写入操作元数据行,随后由调用方向buffer写入文档行)
+	 * @param docKey 文档键
+	 */
+	public void beginItem(String docKey) {
+		if(size==docKeys.length) {
+			int capacity=size<<1;
+			docKeys=Arrays.copyOf(docKeys, capacity);
+			itemStarts=Arrays.copyOf(itemStarts, capacity);
+			sourceStarts=Arrays.copyOf(sourceStarts, capacity);
+			itemEnds=Arrays.copyOf(itemEnds, capacity);
+		}
+		if(0==size) firstMills=System.currentTimeMillis();
+		docKeys[size]=docKey;
+		itemStarts[size]=buffer.size();
+		ElasticUtil.writeBulkAction(buffer, docKey);
+		sourceStarts[size]=buffer.size();
+	}
+
+	/**
+	 * 结束添加文档
+	 */
+	public void endItem() {
+		buffer.write('\n');
+		itemEnds[size++]=buffer.size();
+	}
+
+	/**
+	 * 放弃正在添加的文档
+	 */
+	public void abortItem() {
+		buffer.setSize(itemStarts[size]);
+		docKeys[size]=null;
+	}
+
+	/**
+	 * 是否无文档
+	 * @return 是否无文档
+	 */
+	public boolean isEmpty() {
+		return 0==size;
+	}
+
+	/**
+	 * 获取批量请求体字节数
+	 * @return 字节数
+	 */
+	public int bytes() {
+		return buffer.size();
+	}
+
+	/**
+	 * 获取文档行内容
+	 * @param index 文档序号
+	 * @return 文档JSON
+	 */
+	public String getSource(int index) {
+		return buffer.toString(sourceStarts[index], itemEnds[index]-1);
+	}
+
+	/**
+	 * 将文档项写入死信缓冲区
+	 * @param index 文档序号
+	 */
+	public void deadLetter(int index) {
+		deadLetters.write(buffer.array(), itemStarts[index], itemEnds[index]-itemStarts[index]);
+	}
+
+	/**
+	 * 仅保留指定文档(用于重试),其余文档从请求体中移除
+	 * @param indexs 保留的文档序号表(升序)
+	 * @param num 保留的文档数量
+	 */
+	public void retain(int[] indexs,int num) {
+		byte[] bytes=buffer.array();
+		int position=0;
+		for(int i=0;i<num;i++) {
+			int index=indexs[i];
+			int start=itemStarts[index];
+			int length=itemEnds[index]-start;
+			System.arraycopy(bytes, start, bytes, position, length);
+			docKeys[i]=docKeys[index];
+			sourceStarts[i]=sourceStarts[index]-start+position;
+			itemStarts[i]=position;
+			itemEnds[i]=(position+=length);
+		}
+		Arrays.fill(docKeys, num, size, null);
+		buffer.setSize(position);
+		size=num;
+	}
+
+	/**
+	 * 重置任务以便复用
+	 */
+	public void reset() {
+		Arrays.fill(docKeys, 0, size, null);
+		buffer.reset();
+		deadLetters.reset();
+		size=0;
+		times=0;
+		firstMills=0;
+		sendMills=0;
+		rejected=false;
+	}
+}
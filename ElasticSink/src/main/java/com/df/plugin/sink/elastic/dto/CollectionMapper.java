@@ -44,6 +44,7 @@ public class CollectionMapper<E> {
 	
 	public void setElasticConfig(ElasticConfig elasticConfig) {
 		this.elasticConfig = elasticConfig;
+		this.elasticUtil = new ElasticUtil(elasticConfig.restClient);
 	}
 
 	/**
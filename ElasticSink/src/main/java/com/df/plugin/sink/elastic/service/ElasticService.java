@@ -1,24 +1,40 @@
 package com.df.plugin.sink.elastic.service;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.df.plugin.sink.elastic.config.ElasticConfig;
+import com.df.plugin.sink.elastic.dto.BulkTask;
 import com.df.plugin.sink.elastic.dto.CollectionMapper;
+import com.df.plugin.sink.elastic.util.BulkController;
+import com.df.plugin.sink.elastic.util.DocumentPlan;
 import com.df.plugin.sink.elastic.util.ElasticUtil;
+import com.df.plugin.sink.elastic.util.IndexRouter;
+import com.df.plugin.sink.elastic.util.JsonBuffer;
 import com.github.lixiang2114.flow.util.CommonUtil;
 
 /**
  * @author Lixiang
  * @description Elastic服务
  */
-@SuppressWarnings("unchecked")
+@SuppressWarnings({"unchecked","rawtypes"})
 public class ElasticService {
 	/**
 	 * Elastic工具
@@ -41,15 +57,55 @@ public class ElasticService {
 	private static final Logger log=LoggerFactory.getLogger(ElasticService.class);
 	
 	/**
-	 * 批量文档表
+	 * 当前批量任务
 	 */
-	public ArrayList<HashMap<String,Object>> batchList=new ArrayList<HashMap<String,Object>>();
+	private BulkTask bulkTask;
+	
+	/**
+	 * 空闲批量任务池
+	 */
+	private ConcurrentLinkedQueue<BulkTask> bulkTaskPool;
+	
+	/**
+	 * 文档映射计划(parse模式)
+	 */
+	private DocumentPlan documentPlan;
+	
+	/**
+	 * 单条发送文档缓冲区(parse模式)
+	 */
+	private JsonBuffer docBuffer;
 	
 	public ElasticService(){}
 	
+	/**
+	 * 批量发送自适应控制器
+	 */
+	private BulkController bulkController;
+	
+	/**
+	 * 批量重试调度器
+	 */
+	private ScheduledExecutorService retryScheduler;
+	
+	/**
+	 * 是否存在重试后仍失败的批次
+	 */
+	private volatile boolean bulkFailed;
+	
 	public ElasticService(ElasticConfig elasticConfig){
 		this.elasticConfig=elasticConfig;
-		this.elasticUtil=new ElasticUtil(elasticConfig.restClient);
+		this.elasticUtil=new ElasticUtil(elasticConfig.restClient,elasticConfig.compression);
+		if(elasticConfig.parse) this.documentPlan=new DocumentPlan(elasticConfig);
+		if(null==elasticConfig.batchSize) {
+			this.docBuffer=new JsonBuffer(1024);
+			return;
+		}
+		
+		this.bulkTaskPool=new ConcurrentLinkedQueue<BulkTask>();
+		this.bulkController=elasticConfig.bulkController;
+		this.bulkTask=newBulkTask();
+		this.retryScheduler=Executors.newSingleThreadScheduledExecutor();
 	}
 	
 	/**
@@ -60,7 +116,7 @@ public class ElasticService {
 	public boolean preSend() throws InterruptedException {
 		if(0==elasticConfig.preFailSinkSet.size())  return true;
 		for(Object object:elasticConfig.preFailSinkSet) {
-			CollectionMapper<HashMap<String,Object>> collectionMapper=(CollectionMapper<HashMap<String,Object>>)object;
+			CollectionMapper<Object> collectionMapper=(CollectionMapper<Object>)object;
 			collectionMapper.setElasticConfig(elasticConfig);
 			if(!collectionMapper.send()) return false;
 			elasticConfig.preFailSinkSet.remove(object);
@@ -75,33 +131,12 @@ public class ElasticService {
 	 * @throws InterruptedException
 	 */
 	public Boolean parseAndSingleSend(String msg) throws InterruptedException {
-		HashMap<String,Object> docMap=new HashMap<String,Object>();
-		String[] fieldValues=elasticConfig.fieldSeparator.split(msg);
-		if(null==elasticConfig.fieldList || 0==elasticConfig.fieldList.length){
-			for(int i=0;i<fieldValues.length;docMap.put("field"+i, fieldValues[i]),i++);
-		}else if(elasticConfig.fieldList.length>=fieldValues.length){
-			for(int i=0;i<fieldValues.length;docMap.put(elasticConfig.fieldList[i], fieldValues[i]),i++);
-		}else{
-			int i=0;
-			for(;i<elasticConfig.fieldList.length;docMap.put(elasticConfig.fieldList[i], fieldValues[i]),i++);
-			for(;i<fieldValues.length;docMap.put("field"+i, fieldValues[i]),i++);
-		}
-		
-		if(docMap.isEmpty()) return null;
-		
-		for(String numField:elasticConfig.numFieldSet) {
-			Object value=docMap.get(numField);
-			if(null==value) continue;
-			docMap.put(numField, getNumber(value));
-		}
-		
-		for(String timeField:elasticConfig.timeFieldSet) {
-			Object value=docMap.get(timeField);
-			if(null==value) continue;
-			docMap.put(timeField, getESTimestamp(value));
-		}
+		String docKey=documentPlan.prepare(msg);
+		if(null==docKey) return null;
 		
-		return singleSend(docMap);
+		docBuffer.reset();
+		documentPlan.writeSource(docBuffer);
+		return singleSend(docKey,docBuffer.toString());
 	}
 	
 	/**
@@ -112,42 +147,26 @@ public class ElasticService {
 	 */
 	public Boolean parseAndBatchSend(String msg) throws InterruptedException {
 		if(null==msg) {
-			if(batchList.isEmpty()) return null;
-			return batchSend(batchList);
+			if(bulkTask.isEmpty()) return null;
+			return batchSend();
 		}
 		
 		if((msg=msg.trim()).isEmpty()) return null;
 		
-		HashMap<String,Object> docMap=new HashMap<String,Object>();
-		String[] fieldValues=elasticConfig.fieldSeparator.split(msg);
-		if(null==elasticConfig.fieldList || 0==elasticConfig.fieldList.length){
-			for(int i=0;i<fieldValues.length;docMap.put("field"+i, fieldValues[i]),i++);
-		}else if(elasticConfig.fieldList.length>=fieldValues.length){
-			for(int i=0;i<fieldValues.length;docMap.put(elasticConfig.fieldList[i], fieldValues[i]),i++);
-		}else{
-			int i=0;
-			for(;i<elasticConfig.fieldList.length;docMap.put(elasticConfig.fieldList[i], fieldValues[i]),i++);
-			for(;i<fieldValues.length;docMap.put("field"+i, fieldValues[i]),i++);
-		}
-		
-		if(docMap.isEmpty()) return null;
+		String docKey=documentPlan.prepare(msg);
+		if(null==docKey) return null;
 		
-		for(String numField:elasticConfig.numFieldSet) {
-			Object value=docMap.get(numField);
-			if(null==value) continue;
-			docMap.put(numField, getNumber(value));
+		bulkTask.beginItem(docKey);
+		try{
+			documentPlan.writeSource(bulkTask.buffer);
+		}catch(RuntimeException e) {
+			bulkTask.abortItem();
+			throw e;
 		}
+		bulkTask.endItem();
+		if(!needFlush()) return null;
 		
-		for(String timeField:elasticConfig.timeFieldSet) {
-			Object value=docMap.get(timeField);
-			if(null==value) continue;
-			docMap.put(timeField, getESTimestamp(value));
-		}
-		
-		batchList.add(docMap);
-		if(batchList.size()<elasticConfig.batchSize) return null;
-		
-		return batchSend(batchList);
+		return batchSend();
 	}
 	
 	/**
@@ -166,7 +185,7 @@ public class ElasticService {
 			docMap.put(timeField, getESTimestamp(value));
 		}
 		
-		return singleSend(docMap);
+		return singleSend(getDocKey(docMap),docMap);
 	}
 	
 	/**
@@ -177,8 +196,8 @@ public class ElasticService {
 	 */
 	public Boolean noParseAndBatchSend(String msg) throws InterruptedException {
 		if(null==msg) {
-			if(batchList.isEmpty()) return null;
-			return batchSend(batchList);
+			if(bulkTask.isEmpty()) return null;
+			return batchSend();
 		}
 		
 		if((msg=msg.trim()).isEmpty()) return null;
@@ -191,25 +210,25 @@ public class ElasticService {
 			docMap.put(timeField, getESTimestamp(value));
 		}
 		
-		batchList.add(docMap);
-		if(batchList.size()<elasticConfig.batchSize) return null;
+		addToBulk(docMap);
+		if(!needFlush()) return null;
 		
-		return batchSend(batchList);
+		return batchSend();
 	}
 	
 	/**
 	 * 发送单个文档到Elastic存储
-	 * @param doc 文档对象
+	 * @param docKey 文档键
+	 * @param doc 文档对象(字典或JSON字符串)
 	 * @return 是否发送成功
 	 * @throws InterruptedException 
 	 */
-	private boolean singleSend(HashMap<String,Object> docMap) throws InterruptedException {
-		String docKey=getDocKey(docMap);
+	private boolean singleSend(String docKey,Object doc) throws InterruptedException {
 		boolean loop=false;
 		int times=0;
 		do{
 			try{
-				elasticUtil.push(docKey, docMap);
+				elasticUtil.push(docKey, doc);
 				loop=false;
 			}catch(Exception e) {
 				times++;
@@ -219,47 +238,181 @@ public class ElasticService {
 			}
 		}while(loop && times<elasticConfig.maxRetryTimes);
 		
-		if(loop) elasticConfig.preFailSinkSet.add(new CollectionMapper<HashMap<String,Object>>(docKey,docMap));
+		if(loop) elasticConfig.preFailSinkSet.add(new CollectionMapper<Object>(docKey,doc));
 		return !loop;
 	}
 	
 	/**
-	 * 按集合表命名空间批量发送文档到Elastic存储
-	 * @return 是否发送成功
+	 * 添加文档到当前批量任务
+	 * @param docMap 文档对象
+	 */
+	private void addToBulk(HashMap<String,Object> docMap) {
+		bulkTask.beginItem(getDocKey(docMap));
+		bulkTask.buffer.writeRaw(CommonUtil.javaToJsonStr(docMap));
+		bulkTask.endItem();
+	}
+	
+	/**
+	 * 当前批量任务是否需要提交(文档数达到batchSize、字节数达到当前窗口或最早文档驻留超过batchMaxWaitMills)
+	 * @return 是否需要提交
+	 */
+	private boolean needFlush() {
+		if(bulkTask.size>=elasticConfig.batchSize || bulkTask.bytes()>=bulkController.getWindowBytes()) return true;
+		return System.currentTimeMillis()-bulkTask.firstMills>=elasticConfig.batchMaxWaitMills;
+	}
+	
+	/**
+	 * 获取通道等待时间(当前批量任务中最早文档的剩余驻留时间)
+	 * 批量任务为空时等待batchMaxWaitMills,否则等待至最早文档驻留满batchMaxWaitMills为止
+	 * @return 等待时间(单位:毫秒)
+	 */
+	public long getLingerMills() {
+		if(bulkTask.isEmpty()) return elasticConfig.batchMaxWaitMills;
+		return Math.max(1L, bulkTask.firstMills+elasticConfig.batchMaxWaitMills-System.currentTimeMillis());
+	}
+	
+	/**
+	 * 获取空闲的批量任务(优先从任务池中复用)
+	 * @return 批量任务
+	 */
+	private BulkTask newBulkTask() {
+		BulkTask task=bulkTaskPool.poll();
+		if(null!=task) return task;
+		return new BulkTask(elasticConfig.batchSize,bulkController.getWindowBytes()+(bulkController.getWindowBytes()>>3));
+	}
+	
+	/**
+	 * 通过_bulk接口批量发送当前批量任务到Elastic存储
+	 * 在途请求达到当前上限时阻塞等待,请求结果在回调中异步处理
+	 * @return 是否发送成功(false:此前存在重试后仍失败的批次)
 	 * @throws InterruptedException 
 	 */
-	private boolean batchSend(ArrayList<HashMap<String,Object>> batchDocList) throws InterruptedException {
-		ArrayList<Integer> sucIndexs=new ArrayList<Integer>();
-		int len=batchDocList.size();
-		boolean loop=false;
-		int times=0;
-		int i=0;
-		do{
-			try{
-				HashMap<String, Object> docMap=null;
-				while(i<len) {
-					String docKey=getDocKey(docMap=batchDocList.get(i));
-					elasticUtil.push(docKey, docMap);
-					sucIndexs.add(i++);
+	private boolean batchSend() throws InterruptedException {
+		BulkTask sendTask=bulkTask;
+		bulkController.acquire();
+		bulkTask=newBulkTask();
+		sendBulk(sendTask);
+		return !bulkFailed;
+	}
+	
+	/**
+	 * 异步发送批量任务中的待发送文档
+	 * @param bulkTask 批量任务
+	 */
+	private void sendBulk(BulkTask bulkTask) {
+		bulkTask.rejected=false;
+		bulkTask.sendMills=System.currentTimeMillis();
+		elasticUtil.bulkAsync(bulkTask.buffer, new ResponseListener() {
+			@Override
+			public void onSuccess(Response response) {
+				ArrayList<HashMap> itemList=null;
+				try{
+					itemList=ElasticUtil.getBulkItems(response);
+				}catch(Exception e) {
+					onFailure(e);
+					return;
 				}
-				loop=false;
-			}catch(Exception e) {
-				times++;
-				loop=true;
-				Thread.sleep(elasticConfig.failMaxWaitMills);
+				handleBulkItems(bulkTask,itemList);
+				bulkController.feedback(System.currentTimeMillis()-bulkTask.sendMills, bulkTask.rejected);
+				retryOrFinish(bulkTask);
+			}
+			
+			@Override
+			public void onFailure(Exception e) {
 				log.error("send occur excepton: "+e.getMessage());
+				if(e instanceof ResponseException && 429==((ResponseException)e).getResponse().getStatusLine().getStatusCode()) bulkTask.rejected=true;
+				bulkController.feedback(System.currentTimeMillis()-bulkTask.sendMills, bulkTask.rejected);
+				retryOrFinish(bulkTask);
 			}
-		}while(loop && times<elasticConfig.maxRetryTimes);
+		});
+	}
+	
+	/**
+	 * 处理批量响应中的逐项结果(仅保留需要重试的文档)
+	 * @param bulkTask 批量任务
+	 * @param itemList 逐项响应列表
+	 */
+	private void handleBulkItems(BulkTask bulkTask,ArrayList<HashMap> itemList) {
+		if(null==itemList) {
+			bulkTask.retain(null, 0);
+			return;
+		}
 		
-		int indexSize=sucIndexs.size();
-		for(int j=0;j<indexSize;j++) batchDocList.remove(sucIndexs.get(j)-j);
+		int retryNum=0;
+		int[] retryIndexs=new int[bulkTask.size];
+		for(int i=0;i<bulkTask.size;i++) {
+			HashMap<String,Object> itemResult=(HashMap<String,Object>)itemList.get(i).values().iterator().next();
+			int status=((Number)itemResult.get("status")).intValue();
+			if(200<=status && 300>status) continue;
+			
+			HashMap<String,Object> error=(HashMap<String,Object>)itemResult.get("error");
+			String errorType=null==error?null:(String)error.get("type");
+			switch(getFailPolicy(status,errorType)) {
+				case "retry":
+					if(429==status || "es_rejected_execution_exception".equals(errorType)) bulkTask.rejected=true;
+					retryIndexs[retryNum++]=i;
+					break;
+				case "deadLetter":
+					bulkTask.deadLetter(i);
+					log.error("document {} is rejected with status {}: {}",bulkTask.docKeys[i],status,null==error?null:error.get("reason"));
+					break;
+				default:
+					log.warn("document {} is ignored with status {}: {}",bulkTask.docKeys[i],status,errorType);
+			}
+		}
+		bulkTask.retain(retryIndexs, retryNum);
+	}
+	
+	/**
+	 * 延时重试批量任务中的待发送文档,无需重试或超过重试次数时结束任务
+	 * @param bulkTask 批量任务
+	 */
+	private void retryOrFinish(BulkTask bulkTask) {
+		if(0!=bulkTask.size && ++bulkTask.times<elasticConfig.maxRetryTimes) {
+			log.warn("bulk send has {} rejected documents,retry times: {}",bulkTask.size,bulkTask.times);
+			try{
+				retryScheduler.schedule(()->sendBulk(bulkTask), bulkController.getBackoffMills(elasticConfig.failMaxWaitMills, bulkTask.times), TimeUnit.MILLISECONDS);
+				return;
+			}catch(RejectedExecutionException e) {
+				log.warn("retry scheduler is stopped,give up retry...");
+			}
+		}
 		
-		for(HashMap<String, Object> docMap:batchDocList) {
-			elasticConfig.preFailSinkSet.add(new CollectionMapper<HashMap<String,Object>>(getDocKey(docMap),docMap));
+		if(0!=bulkTask.deadLetters.size()) writeDeadLetters(bulkTask.deadLetters);
+		if(0!=bulkTask.size) {
+			bulkFailed=true;
+			synchronized(elasticConfig.preFailSinkSet) {
+				for(int i=0;i<bulkTask.size;i++) elasticConfig.preFailSinkSet.add(new CollectionMapper<Object>(bulkTask.docKeys[i],bulkTask.getSource(i)));
+			}
 		}
 		
-		batchDocList.clear();
-		return !loop;
+		bulkTask.reset();
+		bulkTaskPool.offer(bulkTask);
+		bulkController.release();
+	}
+	
+	/**
+	 * 获取批量文档失败处理策略
+	 * @param status 文档响应状态码
+	 * @param errorType 错误类型
+	 * @return 处理策略(retry:重试,deadLetter:写入死信文件,ignore:忽略)
+	 */
+	private String getFailPolicy(int status,String errorType) {
+		if(409==status) return elasticConfig.conflictPolicy;
+		if(429==status || 500<=status || "es_rejected_execution_exception".equals(errorType)) return "retry";
+		return "deadLetter";
+	}
+	
+	/**
+	 * 追加写入死信文件
+	 * @param deadLetters 死信文档(NDJSON格式)
+	 */
+	private synchronized void writeDeadLetters(JsonBuffer deadLetters) {
+		try(OutputStream out=Files.newOutputStream(elasticConfig.deadLetterFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			out.write(deadLetters.array(), 0, deadLetters.size());
+		} catch (IOException e) {
+			log.error("write dead letter file occur error: ",e);
+		}
 	}
 	
 	/**
@@ -268,12 +421,19 @@ public class ElasticService {
 	 * @return 集合表
 	 */
 	private String getDocKey(HashMap<String,Object> docMap) {
-		String index=elasticConfig.defaultIndex;
+		String index=null;
 		if(null!=elasticConfig.indexField) {
 			String indexNameStr=(String)docMap.remove(elasticConfig.indexField);
 			if(!isEmpty(indexNameStr)) index="/"+indexNameStr.trim().toLowerCase();
 		}
 		
+		IndexRouter indexRouter=elasticConfig.indexRouter;
+		if(null==index && null!=indexRouter) {
+			Object timeValue=null==elasticConfig.indexTimeField?null:docMap.get(elasticConfig.indexTimeField);
+			index=indexRouter.getIndex(indexRouter.getMills(timeValue));
+		}
+		if(null==index) index=elasticConfig.defaultIndex;
+		
 		String type=elasticConfig.defaultType;
 		if(null!=elasticConfig.typeField) {
 			String typeNameStr=(String)docMap.remove(elasticConfig.typeField);
@@ -294,9 +454,16 @@ public class ElasticService {
 	
 	public boolean stop() {
 		try {
+			if(null!=retryScheduler) {
+				long maxWaitMills=elasticConfig.failMaxWaitMills*elasticConfig.maxRetryTimes+30000L;
+				if(!bulkController.awaitIdle(maxWaitMills)) log.warn("wait in-flight bulk requests timeout...");
+				retryScheduler.shutdownNow();
+			}
+			if(null!=elasticConfig.nodeSniffer) elasticConfig.nodeSniffer.stop();
+			if(null!=elasticConfig.indexRouter) elasticConfig.indexRouter.stop();
 			if(null!=elasticConfig.restClient) elasticConfig.restClient.close();
 			return true;
-		} catch (IOException e) {
+		} catch (IOException | InterruptedException e) {
 			log.error("close RestClient occur error: {}",e);
 			return false;
 		}
@@ -313,18 +480,6 @@ public class ElasticService {
 		return value.trim().isEmpty();
 	}
 	
-	/**
-	 * 转换为数字类型
-	 * @param value 待转换的数字对象
-	 * @return 数字值
-	 */
-	private Number getNumber(Object value) {
-		String str=value.toString().trim();
-		if(str.isEmpty()) return null;
-		if(CommonUtil.isInteger(str)) return Long.parseLong(str);
-		return Double.parseDouble(str);
-	}
-	
 	/**
 	 * 转换为GMT+8时间戳
 	 * @param value 待转换的时间对象
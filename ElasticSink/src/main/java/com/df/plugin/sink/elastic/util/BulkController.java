@@ -0,0 +1,164 @@
+package com.df.plugin.sink.elastic.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Lixiang
+ * @description 批量发送自适应控制器
+ * 按AIMD(加性增/乘性减)策略调整批次字节窗口和在途请求上限:
+ * 批次被拒绝(429)或响应延时超过目标值时窗口和上限减半,否则窗口逐步增大,窗口达到上限后再逐步增加在途请求数
+ */
+public class BulkController {
+	/**
+	 * 批次字节窗口上限
+	 */
+	private int maxBytes;
+
+	/**
+	 * 批次字节窗口下限
+	 */
+	private int minBytes;
+
+	/**
+	 * 在途请求数上限
+	 */
+	private int maxInFlight;
+
+	/**
+	 * 目标响应延时
+	 */
+	private long targetMills;
+
+	/**
+	 * 当前批次字节窗口
+	 */
+	private volatile int windowBytes;
+
+	/**
+	 * 当前在途请求上限
+	 */
+	private volatile int inFlightLimit;
+
+	/**
+	 * 当前在途请求数
+	 */
+	private int inFlight;
+
+	/**
+	 * 响应延时滑动平均值
+	 */
+	private volatile long avgLatencyMills;
+
+	/**
+	 * 上次减窗时间
+	 */
+	private long lastDecreaseMills;
+
+	/**
+	 * 累计被拒绝的批次数
+	 */
+	private volatile long rejectedBulks;
+
+	/**
+	 * 日志工具
+	 */
+	private static final Logger log=LoggerFactory.getLogger(BulkController.class);
+
+	public BulkController(int minBytes,int maxBytes,int maxInFlight,long targetMills) {
+		this.minBytes=Math.min(minBytes, maxBytes);
+		this.maxBytes=maxBytes;
+		this.maxInFlight=maxInFlight;
+		this.targetMills=targetMills;
+		this.windowBytes=maxBytes;
+		this.inFlightLimit=maxInFlight;
+	}
+
+	/**
+	 * 获取在途请求许可(在途请求达到当前上限时阻塞等待)
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while(inFlight>=inFlightLimit) wait();
+		inFlight++;
+	}
+
+	/**
+	 * 释放在途请求许可
+	 */
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/**
+	 * 等待所有在途请求结束
+	 * @param maxWaitMills 最大等待时间
+	 * @return 是否在等待时间内结束
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitIdle(long maxWaitMills) throws InterruptedException {
+		long deadline=System.currentTimeMillis()+maxWaitMills;
+		for(long remain=maxWaitMills;0!=inFlight && 0<remain;remain=deadline-System.currentTimeMillis()) wait(remain);
+		return 0==inFlight;
+	}
+
+	/**
+	 * 反馈一次批量请求结果并调整窗口
+	 * @param latencyMills 响应延时
+	 * @param rejected 是否存在被拒绝(429)的文档
+	 */
+	public synchronized void feedback(long latencyMills,boolean rejected) {
+		avgLatencyMills=0==avgLatencyMills?latencyMills:(avgLatencyMills*7+latencyMills)>>3;
+		if(rejected || latencyMills>targetMills) {
+			if(rejected) rejectedBulks++;
+			long now=System.currentTimeMillis();
+			if(now-lastDecreaseMills<avgLatencyMills) return;
+			lastDecreaseMills=now;
+			windowBytes=Math.max(minBytes, windowBytes>>1);
+			inFlightLimit=Math.max(1, inFlightLimit>>1);
+			log.warn("bulk is {},decrease window to {} bytes and {} in-flight requests...",rejected?"rejected":"slow",windowBytes,inFlightLimit);
+			return;
+		}
+
+		if(windowBytes<maxBytes) {
+			windowBytes=Math.min(maxBytes, windowBytes+minBytes);
+		}else if(inFlightLimit<maxInFlight) {
+			inFlightLimit++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * 获取重试文档的重试等待时间(指数退避并附加随机抖动)
+	 * @param baseMills 基础等待时间
+	 * @param times 已重试次数
+	 * @return 等待时间
+	 */
+	public long getBackoffMills(long baseMills,int times) {
+		long backoffMills=baseMills<<Math.min(Math.max(times-1, 0), 3);
+		return backoffMills+ThreadLocalRandom.current().nextLong(baseMills/2+1);
+	}
+
+	public int getWindowBytes() {
+		return windowBytes;
+	}
+
+	public int getInFlightLimit() {
+		return inFlightLimit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public long getAvgLatencyMills() {
+		return avgLatencyMills;
+	}
+
+	public long getRejectedBulks() {
+		return rejectedBulks;
+	}
+}
@@ -0,0 +1,389 @@
+package com.df.plugin.sink.elastic.util;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+
+import com.df.plugin.sink.elastic.config.ElasticConfig;
+
+/**
+ * @author Lixiang
+ * @description 文档映射计划(parse模式)
+ * 根据fieldList、numFieldSet和timeFieldSet预先编译每个列的转换器,
+ * 解析记录时直接将列值写为JSON文档,不再生成中间字典
+ * 本类非线程安全
+ */
+public class DocumentPlan {
+	/**
+	 * 字符串列
+	 */
+	private static final byte STRING=0;
+
+	/**
+	 * 数值列
+	 */
+	private static final byte NUMBER=1;
+
+	/**
+	 * 时间列
+	 */
+	private static final byte TIME=2;
+
+	/**
+	 * 元数据列(索引名、类型名、文档ID),不写入文档
+	 */
+	private static final byte META=3;
+
+	/**
+	 * 被同名后续列覆盖的列,不写入文档
+	 */
+	private static final byte SKIP=4;
+
+	/**
+	 * Elastic配置
+	 */
+	private ElasticConfig elasticConfig;
+
+	/**
+	 * 列转换器类型表
+	 */
+	private byte[] kinds=new byte[0];
+
+	/**
+	 * 列名前缀表(形如: ,"name":)
+	 */
+	private byte[][] namePrefixes=new byte[0][];
+
+	/**
+	 * 索引名列位置
+	 */
+	private int indexColumn=-1;
+
+	/**
+	 * 索引时间列位置
+	 */
+	private int indexTimeColumn=-1;
+
+	/**
+	 * 类型名列位置
+	 */
+	private int typeColumn=-1;
+
+	/**
+	 * 文档ID列位置
+	 */
+	private int idColumn=-1;
+
+	/**
+	 * 字段分隔符匹配器
+	 */
+	private Matcher separatorMatcher;
+
+	/**
+	 * 当前记录
+	 */
+	private String record;
+
+	/**
+	 * 当前记录列数
+	 */
+	private int columnNum;
+
+	/**
+	 * 当前记录各列起始位置
+	 */
+	private int[] starts=new int[16];
+
+	/**
+	 * 当前记录各列结束位置
+	 */
+	private int[] ends=new int[16];
+
+	/**
+	 * 时区差值字节
+	 */
+	private byte[] timeZoneBytes;
+
+	public DocumentPlan(ElasticConfig elasticConfig) {
+		this.elasticConfig=elasticConfig;
+		this.separatorMatcher=elasticConfig.fieldSeparator.matcher("");
+		this.timeZoneBytes=elasticConfig.timeZone.getBytes(StandardCharsets.UTF_8);
+		compile(null==elasticConfig.fieldList?0:elasticConfig.fieldList.length);
+	}
+
+	/**
+	 * 解析记录并计算文档键
+	 * @param msg 记录(已去除首尾空白)
+	 * @return 文档键(格式:/索引/类型[/文档ID]),记录无字段时返回null
+	 */
+	public String prepare(String msg) {
+		this.record=msg;
+		split(msg);
+		if(0==columnNum) return null;
+		if(columnNum>kinds.length) compile(columnNum);
+
+		String index=null;
+		if(-1!=indexColumn && indexColumn<columnNum) {
+			String indexName=msg.substring(starts[indexColumn], ends[indexColumn]).trim();
+			if(!indexName.isEmpty()) index="/"+indexName.toLowerCase();
+		}
+		
+		IndexRouter indexRouter=elasticConfig.indexRouter;
+		if(null==index && null!=indexRouter) {
+			boolean hasTime=-1!=indexTimeColumn && indexTimeColumn<columnNum;
+			index=indexRouter.getIndex(hasTime?indexRouter.getMills(msg, starts[indexTimeColumn], ends[indexTimeColumn]):System.currentTimeMillis());
+		}
+		if(null==index) index=elasticConfig.defaultIndex;
+
+		String type=elasticConfig.defaultType;
+		if(-1!=typeColumn && typeColumn<columnNum) {
+			String typeName=msg.substring(starts[typeColumn], ends[typeColumn]).trim();
+			if(!typeName.isEmpty()) type="/"+typeName;
+		}
+
+		StringBuilder docKey=new StringBuilder(index).append(type);
+		if(-1!=idColumn && idColumn<columnNum) {
+			String idStr=msg.substring(starts[idColumn], ends[idColumn]).trim();
+			if(!idStr.isEmpty()) docKey.append('/').append(idStr);
+		}
+
+		return docKey.toString();
+	}
+
+	/**
+	 * 将当前记录写为JSON文档
+	 * @param out 输出缓冲区
+	 */
+	public void writeSource(JsonBuffer out) {
+		out.write('{');
+		boolean first=true;
+		for(int i=0;i<columnNum;i++) {
+			byte kind=kinds[i];
+			if(META==kind || SKIP==kind) continue;
+
+			byte[] namePrefix=namePrefixes[i];
+			if(first) {
+				out.write(namePrefix, 1, namePrefix.length-1);
+				first=false;
+			}else{
+				out.write(namePrefix, 0, namePrefix.length);
+			}
+
+			int start=starts[i];
+			int end=ends[i];
+			switch(kind) {
+				case NUMBER:
+					writeNumber(out,start,end);
+					break;
+				case TIME:
+					writeTime(out,start,end);
+					break;
+				default:
+					out.writeString(record, start, end);
+			}
+		}
+		out.write('}');
+	}
+
+	/**
+	 * 按字段分隔符拆分记录(与Pattern.split语义一致)
+	 * @param msg 记录
+	 */
+	private void split(String msg) {
+		columnNum=0;
+		int from=0;
+		separatorMatcher.reset(msg);
+		while(separatorMatcher.find()) {
+			if(0==separatorMatcher.end()) continue;
+			addColumn(from,separatorMatcher.start());
+			from=separatorMatcher.end();
+		}
+		addColumn(from,msg.length());
+		while(0<columnNum && starts[columnNum-1]==ends[columnNum-1]) columnNum--;
+	}
+
+	/**
+	 * 记录列区间
+	 * @param start 起始位置
+	 * @param end 结束位置
+	 */
+	private void addColumn(int start,int end) {
+		if(columnNum==starts.length) {
+			starts=Arrays.copyOf(starts, columnNum<<1);
+			ends=Arrays.copyOf(ends, columnNum<<1);
+		}
+		starts[columnNum]=start;
+		ends[columnNum++]=end;
+	}
+
+	/**
+	 * 编译列转换器
+	 * @param columnNum 列数
+	 */
+	private void compile(int columnNum) {
+		String[] fieldList=elasticConfig.fieldList;
+		int fieldNum=null==fieldList?0:fieldList.length;
+		String[] names=new String[columnNum];
+		for(int i=0;i<columnNum;i++) names[i]=i<fieldNum?fieldList[i]:"field"+i;
+
+		byte[] newKinds=new byte[columnNum];
+		byte[][] newPrefixes=new byte[columnNum][];
+		indexColumn=indexTimeColumn=typeColumn=idColumn=-1;
+		HashMap<String,Integer> nameIndexs=new HashMap<String,Integer>();
+		for(int i=0;i<columnNum;i++) {
+			String name=names[i];
+			Integer preIndex=nameIndexs.put(name, i);
+			if(null!=preIndex) newKinds[preIndex]=SKIP;
+			if(name.equals(elasticConfig.indexTimeField)) indexTimeColumn=i;
+
+			if(name.equals(elasticConfig.indexField)) {
+				newKinds[i]=META;
+				indexColumn=i;
+			}else if(name.equals(elasticConfig.typeField)) {
+				newKinds[i]=META;
+				typeColumn=i;
+			}else if(name.equals(elasticConfig.idField)) {
+				newKinds[i]=META;
+				idColumn=i;
+			}else if(elasticConfig.timeFieldSet.contains(name)) {
+				newKinds[i]=TIME;
+			}else if(elasticConfig.numFieldSet.contains(name)) {
+				newKinds[i]=NUMBER;
+			}else{
+				newKinds[i]=STRING;
+			}
+
+			JsonBuffer prefix=new JsonBuffer(name.length()+4);
+			prefix.write(',').writeString(name).write(':');
+			newPrefixes[i]=Arrays.copyOf(prefix.array(), prefix.size());
+		}
+
+		this.kinds=newKinds;
+		this.namePrefixes=newPrefixes;
+	}
+
+	/**
+	 * 写入数值列(合法的JSON数值字面量直接写入,否则按Long/Double转换)
+	 * @param out 输出缓冲区
+	 * @param start 起始位置
+	 * @param end 结束位置
+	 */
+	private void writeNumber(JsonBuffer out,int start,int end) {
+		while(start<end && Character.isWhitespace(record.charAt(start))) start++;
+		while(end>start && Character.isWhitespace(record.charAt(end-1))) end--;
+		if(start==end) {
+			out.writeRaw("null");
+			return;
+		}
+
+		if(isJsonNumber(record,start,end)) {
+			out.writeRaw(record, start, end);
+			return;
+		}
+
+		String str=record.substring(start, end);
+		out.writeRaw(str.matches("^[+-]?[0-9]+$")?Long.toString(Long.parseLong(str)):Double.toString(Double.parseDouble(str)));
+	}
+
+	/**
+	 * 写入时间列(格式:yyyy-MM-ddTHH:mm:ss.S+时区)
+	 * @param out 输出缓冲区
+	 * @param start 起始位置
+	 * @param end 结束位置
+	 */
+	private void writeTime(JsonBuffer out,int start,int end) {
+		while(start<end && Character.isWhitespace(record.charAt(start))) start++;
+		while(end>start && Character.isWhitespace(record.charAt(end-1))) end--;
+		if(start==end) {
+			out.writeRaw("null");
+			return;
+		}
+
+		out.write('"');
+		if(isStandardTime(record,start,end)) {
+			out.writeRaw(record, start, start+10).write('T').writeRaw(record, start+11, start+19).write('.');
+			int fractionEnd=end;
+			while(fractionEnd>start+20 && '0'==record.charAt(fractionEnd-1)) fractionEnd--;
+			if(fractionEnd>start+20) {
+				out.writeRaw(record, start+20, fractionEnd);
+			}else{
+				out.write('0');
+			}
+		}else{
+			String ts=Timestamp.valueOf(record.substring(start, end)).toString();
+			int blankIndex=ts.indexOf(' ');
+			out.writeRaw(ts, 0, blankIndex).write('T').writeRaw(ts, blankIndex+1, ts.length());
+		}
+		out.write(timeZoneBytes, 0, timeZoneBytes.length).write('"');
+	}
+
+	/**
+	 * 是否为标准时间格式(yyyy-MM-dd HH:mm:ss[.fffffffff])
+	 * @param str 字符串
+	 * @param start 起始位置
+	 * @param end 结束位置
+	 * @return 是否为标准时间格式
+	 */
+	private static boolean isStandardTime(String str,int start,int end) {
+		int len=end-start;
+		if(19!=len && (21>len || 29<len)) return false;
+		for(int i=0;i<len;i++) {
+			char c=str.charAt(start+i);
+			switch(i) {
+				case 4:
+				case 7:
+					if('-'!=c) return false;
+					break;
+				case 10:
+					if(' '!=c) return false;
+					break;
+				case 13:
+				case 16:
+					if(':'!=c) return false;
+					break;
+				case 19:
+					if('.'!=c) return false;
+					break;
+				default:
+					if('0'>c || '9'<c) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 是否为合法的JSON数值字面量
+	 * @param str 字符串
+	 * @param start 起始位置
+	 * @param end 结束位置
+	 * @return 是否为JSON数值
+	 */
+	private static boolean isJsonNumber(String str,int start,int end) {
+		int i=start;
+		if('-'==str.charAt(i) && ++i==end) return false;
+		if('0'==str.charAt(i)) {
+			i++;
+		}else{
+			int digitStart=i;
+			while(i<end && '0'<=str.charAt(i) && '9'>=str.charAt(i)) i++;
+			if(digitStart==i) return false;
+		}
+
+		if(i<end && '.'==str.charAt(i)) {
+			int digitStart=++i;
+			while(i<end && '0'<=str.charAt(i) && '9'>=str.charAt(i)) i++;
+			if(digitStart==i) return false;
+		}
+
+		if(i<end && ('e'==str.charAt(i) || 'E'==str.charAt(i))) {
+			if(++i<end && ('+'==str.charAt(i) || '-'==str.charAt(i))) i++;
+			int digitStart=i;
+			while(i<end && '0'<=str.charAt(i) && '9'>=str.charAt(i)) i++;
+			if(digitStart==i) return false;
+		}
+
+		return i==end;
+	}
+}
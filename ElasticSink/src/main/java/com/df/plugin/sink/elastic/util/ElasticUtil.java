@@ -1,15 +1,24 @@
 package com.df.plugin.sink.elastic.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Cancellable;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 
 import com.github.lixiang2114.flow.util.CommonUtil;
@@ -18,17 +27,32 @@ import com.github.lixiang2114.flow.util.CommonUtil;
  * @author Lixiang
  * @description Elastic工具
  */
-@SuppressWarnings("unused")
+@SuppressWarnings({"unused","unchecked","rawtypes"})
 public class ElasticUtil {
 	/**
 	 * ES集群客户端
 	 */
 	private RestClient restClient;
 	
+	/**
+	 * 是否以gzip压缩批量请求体
+	 */
+	private boolean compression;
+	
+	/**
+	 * 批量请求体内容类型
+	 */
+	private static final ContentType NDJSON=ContentType.create("application/x-ndjson","UTF-8");
+	
 	public ElasticUtil(RestClient restClient) {
 		this.restClient=restClient;
 	}
 	
+	public ElasticUtil(RestClient restClient,boolean compression) {
+		this.restClient=restClient;
+		this.compression=compression;
+	}
+	
 	/**
 	 * 提交文档对象到ES服务
 	 * @param indexAndType 索引及类型(以'/'开头)
@@ -60,6 +84,94 @@ public class ElasticUtil {
 		executePost(docKey+"?pretty",document,new BasicHeader("Content-Type","application/json;charset=UTF-8"));
 	}
 	
+	/**
+	 * 批量提交文档到ES服务(_bulk接口)
+	 * @param bulkBody 批量请求体(NDJSON格式,每行以换行符结尾)
+	 * @return 逐项响应列表(顺序与请求体中的文档一致),全部成功时返回null
+	 * @throws IOException
+	 */
+	public ArrayList<HashMap> bulk(JsonBuffer bulkBody) throws IOException {
+		return getBulkItems(restClient.performRequest(newBulkRequest(bulkBody)));
+	}
+	
+	/**
+	 * 异步批量提交文档到ES服务(_bulk接口)
+	 * @param bulkBody 批量请求体(NDJSON格式,每行以换行符结尾,请求结束前不可修改)
+	 * @param listener 响应监听器(在HTTP客户端IO线程中回调)
+	 * @return 可取消的请求句柄
+	 */
+	public Cancellable bulkAsync(JsonBuffer bulkBody,ResponseListener listener) {
+		return restClient.performRequestAsync(newBulkRequest(bulkBody), listener);
+	}
+	
+	/**
+	 * 获取批量响应中的逐项结果
+	 * @param response 批量响应
+	 * @return 逐项响应列表(顺序与请求体中的文档一致),全部成功时返回null
+	 * @throws IOException
+	 */
+	public static ArrayList<HashMap> getBulkItems(Response response) throws IOException {
+		HttpEntity entity=response.getEntity();
+		if(null==entity) return null;
+		
+		HashMap<String,Object> resultDict=CommonUtil.jsonStrToJava(EntityUtils.toString(entity), HashMap.class);
+		if(null==resultDict || !Boolean.TRUE.equals(resultDict.get("errors"))) return null;
+		return (ArrayList<HashMap>)resultDict.get("items");
+	}
+	
+	/**
+	 * 创建批量请求
+	 * @param bulkBody 批量请求体
+	 * @return 请求对象
+	 */
+	private Request newBulkRequest(JsonBuffer bulkBody) {
+		Request request=new Request("POST","/_bulk");
+		request.addParameter("filter_path", "errors,items.*.status,items.*.error.type,items.*.error.reason");
+		if(compression) {
+			NByteArrayEntity entity=new NByteArrayEntity(gzip(bulkBody.array(),bulkBody.size()),NDJSON);
+			entity.setContentEncoding("gzip");
+			request.setEntity(entity);
+		}else{
+			request.setEntity(new NByteArrayEntity(bulkBody.array(),0,bulkBody.size(),NDJSON));
+		}
+		addHeader(request,new BasicHeader("Content-Type",NDJSON.toString()));
+		return request;
+	}
+	
+	/**
+	 * gzip压缩字节数组
+	 * @param bytes 字节数组
+	 * @param length 有效长度
+	 * @return 压缩后的字节数组
+	 */
+	private static byte[] gzip(byte[] bytes,int length) {
+		ByteArrayOutputStream out=new ByteArrayOutputStream(Math.max(length>>3, 512));
+		try(GZIPOutputStream gzipOut=new GZIPOutputStream(out,8192)) {
+			gzipOut.write(bytes, 0, length);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * 写入批量操作元数据行
+	 * @param buffer 批量请求体
+	 * @param docKey 文档键(格式:/索引/类型[/文档ID])
+	 * @return 批量请求体
+	 */
+	public static JsonBuffer writeBulkAction(JsonBuffer buffer,String docKey) {
+		int typeStart=docKey.indexOf('/', 1);
+		int idStart=docKey.indexOf('/', typeStart+1);
+		int typeEnd=-1==idStart?docKey.length():idStart;
+		boolean defaultType=4==typeEnd-typeStart-1 && docKey.startsWith("_doc", typeStart+1);
+		
+		buffer.writeRaw("{\"index\":{\"_index\":").writeString(docKey, 1, typeStart);
+		if(!defaultType) buffer.writeRaw(",\"_type\":").writeString(docKey, typeStart+1, typeEnd);
+		if(-1!=idStart) buffer.writeRaw(",\"_id\":").writeString(docKey, idStart+1, docKey.length());
+		return buffer.writeRaw("}}\n");
+	}
+	
 	/**
 	 * 发起HTTP请求
 	 * @param uri 请求路径
@@ -99,7 +211,7 @@ public class ElasticUtil {
 	 * @param uri 请求路径
 	 * @param method 请求方法
 	 * @param queryString 查询字串
-	 * @param msgBody 消息体对象
+	 * @param msgBody 消息体对象(字符串视为JSON文本直接发送)
 	 * @param headers 头域列表
 	 * @return 响应对象
 	 */
@@ -110,7 +222,7 @@ public class ElasticUtil {
 		Request request=new Request(method,uri);
 		if(null!=queryString && !queryString.isEmpty()) request.addParameters(queryString);
 		if(null!=headers && 0!=headers.length) addHeader(request,headers);
-		if(null!=msgBody) request.setEntity(new StringEntity(CommonUtil.javaToJsonStr(msgBody),ContentType.APPLICATION_JSON));
+		if(null!=msgBody) request.setEntity(new StringEntity(msgBody instanceof String?(String)msgBody:CommonUtil.javaToJsonStr(msgBody),ContentType.APPLICATION_JSON));
 		
 		try {
 			return restClient.performRequest(request);
@@ -0,0 +1,316 @@
+package com.df.plugin.sink.elastic.util;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Lixiang
+ * @description 时间窗口索引路由器
+ * 按索引名模式(如:logs-{yyyy.MM.dd})将文档时间映射为索引名,同一时间窗口内的索引名只计算一次,
+ * 并在窗口切换之前提前创建下一个窗口的索引,避免切换后首个批次等待索引创建
+ */
+public class IndexRouter {
+	/**
+	 * 索引名前缀(以'/'开头)
+	 */
+	private String prefix;
+
+	/**
+	 * 索引名后缀
+	 */
+	private String suffix;
+
+	/**
+	 * 时间格式
+	 */
+	private DateTimeFormatter formatter;
+
+	/**
+	 * 时间窗口单位(索引名模式中的最小时间单位)
+	 */
+	private ChronoUnit windowUnit;
+
+	/**
+	 * 时区
+	 */
+	private ZoneId zoneId;
+
+	/**
+	 * 当前窗口起始时间
+	 */
+	private long windowStart=Long.MAX_VALUE;
+
+	/**
+	 * 当前窗口结束时间
+	 */
+	private long windowEnd=Long.MIN_VALUE;
+
+	/**
+	 * 当前窗口索引名
+	 */
+	private String windowIndex;
+
+	/**
+	 * 历史窗口索引名缓存(迟到数据使用)
+	 */
+	private LinkedHashMap<Long,String> indexCache=new LinkedHashMap<Long,String>(64,0.75f,true) {
+		private static final long serialVersionUID=1L;
+		protected boolean removeEldestEntry(Map.Entry<Long,String> eldest) {
+			return size()>32;
+		}
+	};
+
+	/**
+	 * 索引预创建调度器
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * 已预创建的最新窗口起始时间
+	 */
+	private long createdStart=Long.MIN_VALUE;
+
+	/**
+	 * 日志工具
+	 */
+	private static final Logger log=LoggerFactory.getLogger(IndexRouter.class);
+
+	/**
+	 * @param indexPattern 索引名模式(时间格式置于花括号中,如:logs-{yyyy.MM.dd})
+	 * @param zoneId 时区
+	 */
+	public IndexRouter(String indexPattern,ZoneId zoneId) {
+		int formatStart=indexPattern.indexOf('{');
+		int formatEnd=indexPattern.indexOf('}', formatStart+1);
+		if(-1==formatStart || -1==formatEnd) throw new IllegalArgumentException("indexPattern must contain a time format in braces: "+indexPattern);
+
+		String format=indexPattern.substring(formatStart+1, formatEnd);
+		this.prefix="/"+indexPattern.substring(0, formatStart).toLowerCase();
+		this.suffix=indexPattern.substring(formatEnd+1).toLowerCase();
+		this.formatter=DateTimeFormatter.ofPattern(format);
+		this.windowUnit=getWindowUnit(format);
+		this.zoneId=zoneId;
+	}
+
+	/**
+	 * 获取时间所在窗口的索引名(非线程安全,仅供发送线程调用)
+	 * 当前窗口内直接返回已计算的索引名,晚于当前窗口时切换窗口,早于当前窗口(迟到数据)时查询历史窗口缓存
+	 * @param mills 文档时间
+	 * @return 索引名(以'/'开头)
+	 */
+	public String getIndex(long mills) {
+		if(mills>=windowStart && mills<windowEnd) return windowIndex;
+
+		ZonedDateTime start=truncate(mills);
+		long startMills=start.toInstant().toEpochMilli();
+		if(null==windowIndex || mills>=windowEnd) {
+			if(null!=windowIndex) indexCache.put(windowStart, windowIndex);
+			windowIndex=format(start);
+			windowStart=startMills;
+			windowEnd=start.plus(1, windowUnit).toInstant().toEpochMilli();
+			return windowIndex;
+		}
+
+		String index=indexCache.get(startMills);
+		if(null==index) indexCache.put(startMills, index=format(start));
+		return index;
+	}
+
+	/**
+	 * 解析文档时间
+	 * @param value 时间值(数值为毫秒时间戳,字符串格式为yyyy-MM-dd HH:mm:ss[.fffffffff])
+	 * @return 毫秒时间戳,值为空或无法解析时返回当前时间
+	 */
+	public long getMills(Object value) {
+		if(value instanceof Number) return ((Number)value).longValue();
+		if(value instanceof java.util.Date) return ((java.util.Date)value).getTime();
+		if(null==value) return System.currentTimeMillis();
+		String str=value.toString();
+		return getMills(str,0,str.length());
+	}
+
+	/**
+	 * 解析文档时间
+	 * @param text 时间文本
+	 * @param from 起始位置(包含)
+	 * @param to 结束位置(不包含)
+	 * @return 毫秒时间戳,值为空或无法解析时返回当前时间
+	 */
+	public long getMills(String text,int from,int to) {
+		while(from<to && Character.isWhitespace(text.charAt(from))) from++;
+		while(to>from && Character.isWhitespace(text.charAt(to-1))) to--;
+		if(from==to) return System.currentTimeMillis();
+		
+		try{
+			if(19<=to-from && '-'==text.charAt(from+4) && '-'==text.charAt(from+7) && ':'==text.charAt(from+13) && ':'==text.charAt(from+16)) {
+				int year=digits(text,from,4);
+				int month=digits(text,from+5,2);
+				int day=digits(text,from+8,2);
+				int hour=digits(text,from+11,2);
+				int minute=digits(text,from+14,2);
+				int second=digits(text,from+17,2);
+				if(0<=(year|month|day|hour|minute|second)) {
+					long epochSecond=LocalDate.of(year, month, day).toEpochDay()*86400L+hour*3600+minute*60+second;
+					return (epochSecond-getOffsetSeconds(epochSecond))*1000L;
+				}
+			}
+			
+			String str=text.substring(from, to);
+			if(isDigits(str)) return Long.parseLong(str);
+			return Timestamp.valueOf(str).toLocalDateTime().atZone(zoneId).toInstant().toEpochMilli();
+		}catch(RuntimeException e) {
+			log.warn("parse index time {} occur error: {}",text.substring(from, to),e.getMessage());
+			return System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * 启动索引预创建(当前窗口立即创建,下一个窗口在切换前leadMills时间内创建)
+	 * @param restClient ES集群客户端
+	 * @param leadMills 提前时间
+	 */
+	public void startPrecreate(RestClient restClient,long leadMills) {
+		scheduler=Executors.newSingleThreadScheduledExecutor(r->{
+			Thread thread=new Thread(r,"elastic-index-precreate");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long checkMills=Math.max(1000L, Math.min(leadMills/2, 60000L));
+		scheduler.scheduleWithFixedDelay(()->precreate(restClient,leadMills), 0, checkMills, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 停止索引预创建
+	 */
+	public void stop() {
+		if(null!=scheduler) scheduler.shutdownNow();
+	}
+
+	/**
+	 * 创建当前窗口及即将到来的窗口的索引(索引已存在时忽略)
+	 * @param restClient ES集群客户端
+	 * @param leadMills 提前时间
+	 */
+	private void precreate(RestClient restClient,long leadMills) {
+		long now=System.currentTimeMillis();
+		for(long mills:new long[]{now,now+leadMills}) {
+			ZonedDateTime start=truncate(mills);
+			long startMills=start.toInstant().toEpochMilli();
+			if(startMills<=createdStart) continue;
+
+			String index=format(start);
+			try{
+				restClient.performRequest(new Request("PUT",index));
+				log.info("index {} is created ahead of time...",index);
+			}catch(ResponseException e) {
+				if(400!=e.getResponse().getStatusLine().getStatusCode() || !e.getMessage().contains("resource_already_exists_exception")) {
+					log.warn("create index {} occur error: {}",index,e.getMessage());
+					return;
+				}
+			}catch(Exception e) {
+				log.warn("create index {} occur error: {}",index,e.getMessage());
+				return;
+			}
+			createdStart=startMills;
+		}
+	}
+
+	/**
+	 * 获取时间所在窗口的起始时间
+	 * @param mills 时间
+	 * @return 窗口起始时间
+	 */
+	private ZonedDateTime truncate(long mills) {
+		ZonedDateTime time=Instant.ofEpochMilli(mills).atZone(zoneId);
+		switch(windowUnit) {
+			case YEARS:
+				return time.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+			case MONTHS:
+				return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+			default:
+				return time.truncatedTo(windowUnit);
+		}
+	}
+
+	/**
+	 * 格式化窗口索引名
+	 * @param start 窗口起始时间
+	 * @return 索引名
+	 */
+	private String format(ZonedDateTime start) {
+		return new StringBuilder(prefix).append(formatter.format(start).toLowerCase()).append(suffix).toString();
+	}
+
+	/**
+	 * 获取本地时间对应的时区偏移秒数
+	 * @param localEpochSecond 本地时间(按UTC计算的秒数)
+	 * @return 偏移秒数
+	 */
+	private int getOffsetSeconds(long localEpochSecond) {
+		if(zoneId instanceof ZoneOffset) return ((ZoneOffset)zoneId).getTotalSeconds();
+		return zoneId.getRules().getOffset(Instant.ofEpochSecond(localEpochSecond)).getTotalSeconds();
+	}
+
+	/**
+	 * 获取时间格式中最小时间单位对应的窗口单位
+	 * 周相关的格式按天划分窗口(同一窗口内索引名必然相同)
+	 * @param format 时间格式
+	 * @return 窗口单位
+	 */
+	private static ChronoUnit getWindowUnit(String format) {
+		String letters=format.replaceAll("'[^']*'", "");
+		if(letters.matches(".*[sSAnN].*")) throw new IllegalArgumentException("indexPattern time format is too fine: "+format);
+		if(letters.contains("m")) return ChronoUnit.MINUTES;
+		if(letters.matches(".*[HhKk].*")) return ChronoUnit.HOURS;
+		if(letters.matches(".*[dDEecFwWY].*")) return ChronoUnit.DAYS;
+		if(letters.matches(".*[MLQq].*")) return ChronoUnit.MONTHS;
+		return ChronoUnit.YEARS;
+	}
+
+	/**
+	 * 解析定长数字
+	 * @param text 文本
+	 * @param from 起始位置
+	 * @param length 长度
+	 * @return 数字,含非数字字符时返回-1
+	 */
+	private static int digits(String text,int from,int length) {
+		int value=0;
+		for(int i=from;i<from+length;i++) {
+			char c=text.charAt(i);
+			if('0'>c || '9'<c) return -1;
+			value=value*10+(c-'0');
+		}
+		return value;
+	}
+
+	/**
+	 * 是否为纯数字
+	 * @param str 字符串
+	 * @return 是否为纯数字
+	 */
+	private static boolean isDigits(String str) {
+		for(int i=0;i<str.length();i++) {
+			char c=str.charAt(i);
+			if('0'>c || '9'<c) return false;
+		}
+		return true;
+	}
+}
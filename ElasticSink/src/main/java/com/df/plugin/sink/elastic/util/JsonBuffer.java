@@ -0,0 +1,237 @@
+package com.df.plugin.sink.elastic.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * @author Lixiang
+ * @description 可复用的JSON字节缓冲区(UTF-8编码)
+ * 本类非线程安全
+ */
+public class JsonBuffer {
+	/**
+	 * 字节数组
+	 */
+	private byte[] buf;
+
+	/**
+	 * 已写入字节数
+	 */
+	private int count;
+
+	/**
+	 * 十六进制字符表
+	 */
+	private static final byte[] HEX_DIGITS="0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	public JsonBuffer(int capacity) {
+		this.buf=new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * 获取底层字节数组
+	 * @return 字节数组(有效长度为size())
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * 获取已写入字节数
+	 * @return 已写入字节数
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * 截断到指定长度
+	 * @param size 新长度
+	 */
+	public void setSize(int size) {
+		this.count=size;
+	}
+
+	/**
+	 * 清空缓冲区(保留已分配的空间)
+	 */
+	public void reset() {
+		count=0;
+	}
+
+	/**
+	 * 写入单个字节
+	 * @param b 字节
+	 * @return 缓冲区
+	 */
+	public JsonBuffer write(int b) {
+		ensureCapacity(1);
+		buf[count++]=(byte)b;
+		return this;
+	}
+
+	/**
+	 * 写入字节数组片段
+	 * @param bytes 字节数组
+	 * @param offset 起始位置
+	 * @param length 长度
+	 * @return 缓冲区
+	 */
+	public JsonBuffer write(byte[] bytes,int offset,int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buf, count, length);
+		count+=length;
+		return this;
+	}
+
+	/**
+	 * 写入原始字符(不加引号,不转义)
+	 * @param chars 字符序列
+	 * @return 缓冲区
+	 */
+	public JsonBuffer writeRaw(CharSequence chars) {
+		return writeRaw(chars,0,chars.length());
+	}
+
+	/**
+	 * 写入原始字符片段(不加引号,不转义)
+	 * @param chars 字符序列
+	 * @param from 起始位置(包含)
+	 * @param to 结束位置(不包含)
+	 * @return 缓冲区
+	 */
+	public JsonBuffer writeRaw(CharSequence chars,int from,int to) {
+		ensureCapacity(to-from);
+		for(int i=from;i<to;i++) {
+			char c=chars.charAt(i);
+			if(c<0x80) {
+				ensureCapacity(1);
+				buf[count++]=(byte)c;
+			}else{
+				i=writeUtf8(chars,i,to);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * 写入JSON字符串(含首尾引号及转义)
+	 * @param chars 字符序列
+	 * @return 缓冲区
+	 */
+	public JsonBuffer writeString(CharSequence chars) {
+		return writeString(chars,0,chars.length());
+	}
+
+	/**
+	 * 写入JSON字符串片段(含首尾引号及转义)
+	 * @param chars 字符序列
+	 * @param from 起始位置(包含)
+	 * @param to 结束位置(不包含)
+	 * @return 缓冲区
+	 */
+	public JsonBuffer writeString(CharSequence chars,int from,int to) {
+		ensureCapacity(to-from+2);
+		buf[count++]='"';
+		for(int i=from;i<to;i++) {
+			char c=chars.charAt(i);
+			if(c>=0x80) {
+				i=writeUtf8(chars,i,to);
+				continue;
+			}
+
+			ensureCapacity(6);
+			if(c>=0x20 && '"'!=c && '\\'!=c) {
+				buf[count++]=(byte)c;
+				continue;
+			}
+
+			buf[count++]='\\';
+			switch(c) {
+				case '"':
+					buf[count++]='"';
+					break;
+				case '\\':
+					buf[count++]='\\';
+					break;
+				case '\n':
+					buf[count++]='n';
+					break;
+				case '\r':
+					buf[count++]='r';
+					break;
+				case '\t':
+					buf[count++]='t';
+					break;
+				default:
+					buf[count++]='u';
+					buf[count++]='0';
+					buf[count++]='0';
+					buf[count++]=HEX_DIGITS[c>>4];
+					buf[count++]=HEX_DIGITS[c&0xF];
+			}
+		}
+		ensureCapacity(1);
+		buf[count++]='"';
+		return this;
+	}
+
+	/**
+	 * 解码指定区间的字节为字符串
+	 * @param from 起始位置(包含)
+	 * @param to 结束位置(不包含)
+	 * @return 字符串
+	 */
+	public String toString(int from,int to) {
+		return new String(buf, from, to-from, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return toString(0,count);
+	}
+
+	/**
+	 * 以UTF-8编码写入非ASCII字符(不成对的代理字符写为'?',与String.getBytes一致)
+	 * @param chars 字符序列
+	 * @param index 字符位置
+	 * @param to 结束位置(不包含)
+	 * @return 最后一个被消费的字符位置
+	 */
+	private int writeUtf8(CharSequence chars,int index,int to) {
+		ensureCapacity(4);
+		char c=chars.charAt(index);
+		if(c<0x800) {
+			buf[count++]=(byte)(0xC0|(c>>6));
+			buf[count++]=(byte)(0x80|(c&0x3F));
+			return index;
+		}
+
+		if(Character.isHighSurrogate(c) && index+1<to && Character.isLowSurrogate(chars.charAt(index+1))) {
+			int codePoint=Character.toCodePoint(c, chars.charAt(index+1));
+			buf[count++]=(byte)(0xF0|(codePoint>>18));
+			buf[count++]=(byte)(0x80|((codePoint>>12)&0x3F));
+			buf[count++]=(byte)(0x80|((codePoint>>6)&0x3F));
+			buf[count++]=(byte)(0x80|(codePoint&0x3F));
+			return index+1;
+		}
+
+		if(Character.isSurrogate(c)) {
+			buf[count++]='?';
+			return index;
+		}
+		buf[count++]=(byte)(0xE0|(c>>12));
+		buf[count++]=(byte)(0x80|((c>>6)&0x3F));
+		buf[count++]=(byte)(0x80|(c&0x3F));
+		return index;
+	}
+
+	/**
+	 * 确保剩余空间足够
+	 * @param length 需要的剩余字节数
+	 */
+	private void ensureCapacity(int length) {
+		if(count+length<=buf.length) return;
+		buf=Arrays.copyOf(buf, Math.max(buf.length<<1, count+length));
+	}
+}
@@ -0,0 +1,162 @@
+package com.df.plugin.sink.elastic.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpHost;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.lixiang2114.flow.util.CommonUtil;
+
+/**
+ * @author Lixiang
+ * @description 集群节点嗅探器
+ * 定期通过_nodes/http接口发现集群中的数据节点并刷新客户端节点列表,
+ * 客户端在节点列表上轮询发送请求,已下线的节点在下次嗅探后被移除,节点请求失败时立即触发一次嗅探
+ */
+@SuppressWarnings({"unchecked","rawtypes"})
+public class NodeSniffer {
+	/**
+	 * ES集群客户端
+	 */
+	private RestClient restClient;
+
+	/**
+	 * 节点协议(http或https)
+	 */
+	private String scheme;
+
+	/**
+	 * 嗅探时间间隔
+	 */
+	private long intervalMills;
+
+	/**
+	 * 嗅探调度器
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * 是否已有待执行的失败嗅探
+	 */
+	private AtomicBoolean failSniffPending=new AtomicBoolean();
+
+	/**
+	 * 日志工具
+	 */
+	private static final Logger log=LoggerFactory.getLogger(NodeSniffer.class);
+
+	public NodeSniffer(RestClient restClient,String scheme,long intervalMills) {
+		this.restClient=restClient;
+		this.scheme=scheme;
+		this.intervalMills=intervalMills;
+	}
+
+	/**
+	 * 启动定期嗅探
+	 */
+	public void start() {
+		scheduler=Executors.newSingleThreadScheduledExecutor(r->{
+			Thread thread=new Thread(r,"elastic-node-sniffer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::sniff, 0, intervalMills, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 节点请求失败时触发嗅探(同一时刻最多一个待执行的失败嗅探)
+	 */
+	public void sniffOnFailure() {
+		if(null==scheduler || !failSniffPending.compareAndSet(false, true)) return;
+		try{
+			scheduler.execute(()->{
+				failSniffPending.set(false);
+				sniff();
+			});
+		}catch(RuntimeException e) {
+			failSniffPending.set(false);
+		}
+	}
+
+	/**
+	 * 嗅探集群数据节点并刷新客户端节点列表(未发现数据节点时保留原节点列表)
+	 */
+	public void sniff() {
+		try{
+			Request request=new Request("GET","/_nodes/http");
+			request.addParameter("filter_path", "nodes.*.roles,nodes.*.http.publish_address");
+			String responseBody=EntityUtils.toString(restClient.performRequest(request).getEntity());
+			HashMap<String,Object> resultDict=CommonUtil.jsonStrToJava(responseBody, HashMap.class);
+			Map<String,Object> nodeDict=null==resultDict?null:(Map<String,Object>)resultDict.get("nodes");
+			if(null==nodeDict || nodeDict.isEmpty()) return;
+
+			List<Node> nodeList=new ArrayList<Node>();
+			for(Object value:nodeDict.values()) {
+				Map<String,Object> nodeInfo=(Map<String,Object>)value;
+				if(!isDataNode((List)nodeInfo.get("roles"))) continue;
+				Map<String,Object> httpInfo=(Map<String,Object>)nodeInfo.get("http");
+				if(null==httpInfo) continue;
+				HttpHost host=getHttpHost((String)httpInfo.get("publish_address"));
+				if(null!=host) nodeList.add(new Node(host));
+			}
+
+			if(nodeList.isEmpty()) {
+				log.warn("no data node is sniffed,keep current nodes: {}",restClient.getNodes());
+				return;
+			}
+
+			restClient.setNodes(nodeList);
+			log.debug("sniffed data nodes: {}",nodeList);
+		}catch(Exception e) {
+			log.warn("sniff nodes occur error: {}",e.getMessage());
+		}
+	}
+
+	/**
+	 * 停止嗅探
+	 */
+	public void stop() {
+		if(null!=scheduler) scheduler.shutdownNow();
+	}
+
+	/**
+	 * 是否为数据节点(包括data、data_hot、data_content等角色,未返回角色时视为数据节点)
+	 * @param roles 节点角色列表
+	 * @return 是否为数据节点
+	 */
+	private static boolean isDataNode(List roles) {
+		if(null==roles) return true;
+		for(Object role:roles) {
+			if(String.valueOf(role).startsWith("data")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 解析节点发布地址
+	 * @param publishAddress 发布地址(格式:[主机名/]IP:端口)
+	 * @return 主机地址
+	 */
+	private HttpHost getHttpHost(String publishAddress) {
+		if(null==publishAddress) return null;
+		String address=publishAddress.substring(publishAddress.indexOf('/')+1);
+		int portIndex=address.lastIndexOf(':');
+		if(-1==portIndex) return null;
+
+		String ip=address.substring(0, portIndex);
+		if(ip.startsWith("[") && ip.endsWith("]")) ip=ip.substring(1, ip.length()-1);
+		return new HttpHost(ip, Integer.parseInt(address.substring(portIndex+1)), scheme);
+	}
+}
@@ -0,0 +1,124 @@
+package com.df.plugin.sink.elastic.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author Lixiang
+ * @description Elastic工具测试(使用本地HTTP服务模拟_bulk接口)
+ */
+public class ElasticUtilTest {
+	/**
+	 * 批量请求体
+	 */
+	private static final String BULK_BODY="{\"index\":{\"_index\":\"logs\",\"_id\":\"1\"}}\n{\"name\":\"张三\"}\n";
+
+	/**
+	 * 本地HTTP服务
+	 */
+	private HttpServer server;
+
+	/**
+	 * ES集群客户端
+	 */
+	private RestClient restClient;
+
+	/**
+	 * 收到的请求内容编码
+	 */
+	private volatile String contentEncoding;
+
+	/**
+	 * 收到的请求体(已按内容编码解压)
+	 */
+	private volatile String requestBody;
+
+	@After
+	public void close() throws IOException {
+		if(null!=restClient) restClient.close();
+		if(null!=server) server.stop(0);
+	}
+
+	/**
+	 * compression=true时批量请求体以gzip压缩发送
+	 */
+	@Test
+	public void bulkWithCompression() throws Exception {
+		startServer();
+		assertNull(new ElasticUtil(restClient,true).bulk(newBulkBody()));
+
+		assertEquals("gzip", contentEncoding);
+		assertEquals(BULK_BODY, requestBody);
+	}
+
+	/**
+	 * compression=false时批量请求体原样发送
+	 */
+	@Test
+	public void bulkWithoutCompression() throws Exception {
+		startServer();
+		assertNull(new ElasticUtil(restClient,false).bulk(newBulkBody()));
+
+		assertNull(contentEncoding);
+		assertEquals(BULK_BODY, requestBody);
+	}
+
+	/**
+	 * 创建批量请求体
+	 * @return 批量请求体
+	 */
+	private static JsonBuffer newBulkBody() {
+		JsonBuffer bulkBody=new JsonBuffer(256);
+		bulkBody.writeRaw(BULK_BODY);
+		return bulkBody;
+	}
+
+	/**
+	 * 启动本地HTTP服务并创建客户端
+	 */
+	private void startServer() throws IOException {
+		server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+		server.createContext("/_bulk", exchange->{
+			contentEncoding=exchange.getRequestHeaders().getFirst("Content-Encoding");
+			requestBody=readBody(exchange);
+			byte[] body="{\"errors\":false}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type","application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try(OutputStream out=exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		restClient=RestClient.builder(new HttpHost("127.0.0.1",server.getAddress().getPort(),"http")).build();
+	}
+
+	/**
+	 * 读取请求体(gzip编码时解压)
+	 * @param exchange HTTP交换
+	 * @return 请求体
+	 */
+	private String readBody(HttpExchange exchange) throws IOException {
+		InputStream in=exchange.getRequestBody();
+		if("gzip".equals(contentEncoding)) in=new GZIPInputStream(in);
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		byte[] bytes=new byte[1024];
+		for(int length;-1!=(length=in.read(bytes));) out.write(bytes, 0, length);
+		return new String(out.toByteArray(),StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,68 @@
+package com.df.plugin.sink.elastic.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * @author Lixiang
+ * @description 时间窗口索引路由器测试
+ */
+public class IndexRouterTest {
+	/**
+	 * 2024-01-02 00:00:00(UTC)
+	 */
+	private static final long DAY_START=1704153600000L;
+
+	/**
+	 * 一天的毫秒数
+	 */
+	private static final long DAY_MILLS=86400000L;
+
+	/**
+	 * 同一窗口内的时间直接返回当前窗口的索引名,不查询历史窗口缓存
+	 */
+	@Test
+	public void currentWindowIsComputedOnce() throws Exception {
+		IndexRouter indexRouter=new IndexRouter("logs-{yyyy.MM.dd}",ZoneOffset.UTC);
+		String first=indexRouter.getIndex(DAY_START+1000L);
+		String second=indexRouter.getIndex(DAY_START+DAY_MILLS-1L);
+
+		assertEquals("/logs-2024.01.02", first);
+		assertSame(first, second);
+		assertTrue(getIndexCache(indexRouter).isEmpty());
+	}
+
+	/**
+	 * 切换窗口后原窗口进入历史窗口缓存,迟到数据从缓存中获取索引名
+	 */
+	@Test
+	public void lateDataUsesIndexCache() throws Exception {
+		IndexRouter indexRouter=new IndexRouter("logs-{yyyy.MM.dd}",ZoneOffset.UTC);
+		String previous=indexRouter.getIndex(DAY_START);
+		String current=indexRouter.getIndex(DAY_START+DAY_MILLS);
+
+		assertEquals("/logs-2024.01.03", current);
+		assertEquals(1, getIndexCache(indexRouter).size());
+		assertSame(previous, indexRouter.getIndex(DAY_START+5000L));
+		assertEquals("/logs-2024.01.01", indexRouter.getIndex(DAY_START-1L));
+		assertSame(current, indexRouter.getIndex(DAY_START+DAY_MILLS+5000L));
+	}
+
+	/**
+	 * 获取历史窗口缓存
+	 * @param indexRouter 索引路由器
+	 * @return 历史窗口缓存
+	 */
+	private static Map<?,?> getIndexCache(IndexRouter indexRouter) throws Exception {
+		Field field=IndexRouter.class.getDeclaredField("indexCache");
+		field.setAccessible(true);
+		return (Map<?,?>)field.get(indexRouter);
+	}
+}
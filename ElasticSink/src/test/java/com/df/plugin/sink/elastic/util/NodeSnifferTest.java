@@ -0,0 +1,106 @@
+package com.df.plugin.sink.elastic.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author Lixiang
+ * @description 集群节点嗅探器测试(使用本地HTTP服务模拟_nodes/http接口)
+ */
+public class NodeSnifferTest {
+	/**
+	 * 模拟的_nodes/http响应(主节点、数据节点、热数据节点、未开启HTTP的数据节点)
+	 */
+	private static final String NODES_RESPONSE="{\"nodes\":{"
+			+ "\"m1\":{\"roles\":[\"master\"],\"http\":{\"publish_address\":\"10.0.0.1:9200\"}},"
+			+ "\"d1\":{\"roles\":[\"data\",\"ingest\"],\"http\":{\"publish_address\":\"es-data-1/10.0.0.2:9201\"}},"
+			+ "\"d2\":{\"roles\":[\"data_hot\",\"data_content\"],\"http\":{\"publish_address\":\"[::1]:9202\"}},"
+			+ "\"d3\":{\"roles\":[\"data\"]}"
+			+ "}}";
+
+	/**
+	 * 本地HTTP服务
+	 */
+	private HttpServer server;
+
+	/**
+	 * ES集群客户端
+	 */
+	private RestClient restClient;
+
+	@After
+	public void close() throws IOException {
+		if(null!=restClient) restClient.close();
+		if(null!=server) server.stop(0);
+	}
+
+	/**
+	 * 嗅探结果只保留开启HTTP的数据节点,发布地址去掉主机名前缀
+	 */
+	@Test
+	public void sniffDataNodes() throws Exception {
+		startServer(NODES_RESPONSE);
+		new NodeSniffer(restClient,"http",60000L).sniff();
+
+		HashSet<HttpHost> hostSet=new HashSet<HttpHost>();
+		for(Node node:restClient.getNodes()) hostSet.add(node.getHost());
+		assertEquals(new HashSet<HttpHost>(Arrays.asList(new HttpHost("10.0.0.2",9201,"http"),new HttpHost("::1",9202,"http"))), hostSet);
+	}
+
+	/**
+	 * 嗅探到的节点使用配置主机的协议
+	 */
+	@Test
+	public void sniffKeepsScheme() throws Exception {
+		startServer(NODES_RESPONSE);
+		new NodeSniffer(restClient,"https",60000L).sniff();
+
+		for(Node node:restClient.getNodes()) assertEquals("https", node.getHost().getSchemeName());
+	}
+
+	/**
+	 * 未发现数据节点时保留原节点列表
+	 */
+	@Test
+	public void keepNodesWithoutDataNode() throws Exception {
+		startServer("{\"nodes\":{\"m1\":{\"roles\":[\"master\"],\"http\":{\"publish_address\":\"10.0.0.1:9200\"}}}}");
+		List<Node> nodeList=new ArrayList<Node>(restClient.getNodes());
+		new NodeSniffer(restClient,"http",60000L).sniff();
+
+		assertEquals(nodeList, restClient.getNodes());
+	}
+
+	/**
+	 * 启动本地HTTP服务并创建客户端
+	 * @param nodesResponse _nodes/http响应
+	 */
+	private void startServer(String nodesResponse) throws IOException {
+		server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+		server.createContext("/_nodes/http", exchange->{
+			byte[] body=nodesResponse.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type","application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try(OutputStream out=exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		restClient=RestClient.builder(new HttpHost("127.0.0.1",server.getAddress().getPort(),"http")).build();
+	}
+}
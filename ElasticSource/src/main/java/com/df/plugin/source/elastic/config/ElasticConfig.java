@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,6 +29,7 @@ import org.elasticsearch.client.RestClientBuilder.HttpClientConfigCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.df.plugin.source.elastic.dto.SliceCursor;
 import com.github.lixiang2114.flow.comps.Flow;
 import com.github.lixiang2114.flow.util.CommonUtil;
 import com.github.lixiang2114.flow.util.PropertiesReader;
@@ -126,6 +128,59 @@ public class ElasticConfig {
 	 */
 	public HashMap<String,Object> queryParamDict;
 	
+	/**
+	 * 查询返回的文档字段列表(下推为_source字段过滤,为null时返回全部字段)
+	 */
+	public ArrayList<String> includes;
+	
+	/**
+	 * 分页模式
+	 * from: 按from/size分页
+	 * searchAfter: 按排序值游标(search_after)分页,集群支持时使用时间点(PIT)
+	 * watermark: 按时间水位线增量读取
+	 */
+	public String pageMode;
+	
+	/**
+	 * searchAfter模式下的排序字段
+	 */
+	public String sortField;
+	
+	/**
+	 * searchAfter及watermark模式下的排序决胜字段(需在索引内唯一且具有doc_values,未配置时使用时间点时按_shard_doc决胜)
+	 */
+	public String tiebreaker;
+	
+	/**
+	 * 时间点(PIT)保持时间
+	 */
+	public String pitKeepAlive;
+	
+	/**
+	 * searchAfter模式下的并行分片数量
+	 */
+	public Integer slices;
+	
+	/**
+	 * searchAfter模式下的分片游标表(每个分片独立维护检查点,不分片时仅有一个游标)
+	 */
+	public SliceCursor[] sliceCursors;
+	
+	/**
+	 * watermark模式下的水位线字段(时间字段或递增数值字段)
+	 */
+	public String watermarkField;
+	
+	/**
+	 * watermark模式下每次查询回溯的重叠时长(用于捕获迟到文档)
+	 */
+	public Long overlapMills;
+	
+	/**
+	 * watermark模式下已读文档的最大水位线值(检查点)
+	 */
+	public volatile Long watermark;
+	
 	/**
 	 * 英文冒号正则式
 	 */
@@ -169,8 +224,40 @@ public class ElasticConfig {
 		this.indexName="/"+indexNameStr.toLowerCase();
 		
 		initHostAddress();
+		
+		String pageModeStr=config.getProperty("pageMode","").trim();
+		this.pageMode=pageModeStr.isEmpty()?"from":pageModeStr;
+		
 		initSelectSqlParameter();
 		
+		String includesStr=config.getProperty("includes","").trim();
+		this.includes=includesStr.isEmpty()?null:Arrays.stream(COMMA_REGEX.split(includesStr)).map(e->e.trim()).filter(e->!e.isEmpty()).collect(Collectors.toCollection(ArrayList::new));
+		
+		String sortFieldStr=config.getProperty("sortField","").trim();
+		this.sortField=sortFieldStr.isEmpty()?null:sortFieldStr;
+		
+		String tiebreakerStr=config.getProperty("tiebreaker","").trim();
+		this.tiebreaker=tiebreakerStr.isEmpty()?null:tiebreakerStr;
+		if("watermark".equals(pageMode) && null==tiebreaker) throw new RuntimeException("No Tiebreaker Specified...");
+		
+		String pitKeepAliveStr=config.getProperty("pitKeepAlive","").trim();
+		this.pitKeepAlive=pitKeepAliveStr.isEmpty()?"1m":pitKeepAliveStr;
+		
+		String slicesStr=config.getProperty("slices","").trim();
+		this.slices=slicesStr.isEmpty()?1:Integer.parseInt(slicesStr);
+		
+		initSliceCursors();
+		
+		String watermarkFieldStr=config.getProperty("watermarkField","").trim();
+		this.watermarkField=watermarkFieldStr.isEmpty()?null:watermarkFieldStr;
+		if("watermark".equals(pageMode) && null==watermarkField) throw new RuntimeException("No Watermark Field Specified...");
+		
+		String overlapMillsStr=config.getProperty("overlapMills","").trim();
+		this.overlapMills=overlapMillsStr.isEmpty()?5000L:Long.parseLong(overlapMillsStr);
+		
+		String watermarkStr=config.getProperty("watermark","").trim();
+		this.watermark=watermarkStr.isEmpty()?null:Long.parseLong(watermarkStr);
+		
 		String timeZoneStr=config.getProperty("timeZone","").trim();
 		this.timeZone=timeZoneStr.isEmpty()?"+0800":timeZoneStr;
 		
@@ -231,6 +318,11 @@ public class ElasticConfig {
 		Number startIndexNum=(Number)queryDict.get("from");
 		Number batchSizeNum=(Number)queryDict.get("size");
 		
+		if("searchAfter".equals(pageMode) || "watermark".equals(pageMode)) {
+			if(null==batchSizeNum) batchSizeNum=100;
+			if(null==startIndexNum) startIndexNum=0;
+		}
+		
 		if(null==startIndexNum || null==batchSizeNum) {
 			log.error("last two params must be from and size");
 			throw new RuntimeException("last two params must be from and size");
@@ -241,6 +333,21 @@ public class ElasticConfig {
 		this.startIndex=startIndexNum.intValue();
 	}
 	
+	/**
+	 * 初始化分片游标表
+	 * 不分片时检查点属性名为searchAfter,分片时为searchAfter.分片ID,已读取完毕的分片记录在finishedSlices中
+	 */
+	private void initSliceCursors() {
+		HashSet<String> finishedSet=new HashSet<String>(Arrays.asList(COMMA_REGEX.split(config.getProperty("finishedSlices","").trim())));
+		this.sliceCursors=new SliceCursor[slices];
+		for(int i=0;i<slices;i++) {
+			sliceCursors[i]=new SliceCursor(i,slices,1==slices?"searchAfter":"searchAfter."+i);
+			String searchAfterStr=config.getProperty(sliceCursors[i].checkpointKey,"").trim();
+			if(!searchAfterStr.isEmpty()) sliceCursors[i].searchAfter=CommonUtil.jsonStrToJava(searchAfterStr, ArrayList.class);
+			sliceCursors[i].finished=1<slices && finishedSet.contains(String.valueOf(i));
+		}
+	}
+	
 	/**
 	 * 初始化主机地址列表
 	 */
@@ -279,6 +386,16 @@ public class ElasticConfig {
 	public void refreshCheckPoint() throws IOException{
 		OutputStream fos=null;
 		config.setProperty("selectSQL",CommonUtil.javaToJsonStr(queryParamDict));
+		if(null!=watermark) config.setProperty("watermark",watermark.toString());
+		if(null!=sliceCursors) {
+			StringBuilder finishedSlices=new StringBuilder();
+			for(SliceCursor sliceCursor:sliceCursors) {
+				ArrayList<Object> searchAfter=sliceCursor.searchAfter;
+				if(null!=searchAfter) config.setProperty(sliceCursor.checkpointKey,CommonUtil.javaToJsonStr(searchAfter));
+				if(sliceCursor.finished) finishedSlices.append(sliceCursor.sliceId).append(',');
+			}
+			if(1<sliceCursors.length) config.setProperty("finishedSlices",0==finishedSlices.length()?"":finishedSlices.substring(0, finishedSlices.length()-1));
+		}
 		try{
 			fos=new FileOutputStream(new File(sourcePath,"source.properties"));
 			log.info("reflesh checkpoint...");
@@ -370,6 +487,16 @@ public class ElasticConfig {
 		map.put("timeFieldSet", timeFieldSet);
 		map.put("clusterName", clusterName);
 		map.put("selectSQL", queryParamDict);
+		map.put("pageMode", pageMode);
+		map.put("sortField", sortField);
+		map.put("tiebreaker", tiebreaker);
+		map.put("pitKeepAlive", pitKeepAlive);
+		map.put("includes", includes);
+		map.put("watermarkField", watermarkField);
+		map.put("overlapMills", overlapMills);
+		map.put("watermark", watermark);
+		map.put("slices", slices);
+		if(null!=sliceCursors) for(SliceCursor sliceCursor:sliceCursors) map.put(sliceCursor.checkpointKey, sliceCursor.finished?"finished":sliceCursor.searchAfter);
 		map.put("hostList", Arrays.toString(hostList));
 		map.put("enableAuthCache", enableAuthCache);
 		return map.toString();
@@ -0,0 +1,33 @@
+package com.df.plugin.source.elastic.dto;
+
+import java.util.ArrayList;
+
+/**
+ * @author Lixiang
+ * @description 查询命中文档(流式解析时复用同一实例)
+ */
+public class SearchHit {
+	/**
+	 * 文档ID
+	 */
+	public String id;
+	
+	/**
+	 * 排序值
+	 */
+	public ArrayList<Object> sort;
+	
+	/**
+	 * 文档内容(_source的JSON字串)
+	 */
+	public String source;
+	
+	/**
+	 * 重置命中文档以便复用
+	 */
+	public void reset() {
+		id=null;
+		sort=null;
+		source=null;
+	}
+}
@@ -0,0 +1,29 @@
+package com.df.plugin.source.elastic.dto;
+
+import java.util.ArrayList;
+
+/**
+ * @author Lixiang
+ * @description 查询结果页(流式解析后仅保留分页所需的信息)
+ */
+public class SearchPage {
+	/**
+	 * 命中文档数量
+	 */
+	public int hitCount;
+	
+	/**
+	 * 时间点(PIT)标识
+	 */
+	public String pitId;
+	
+	/**
+	 * 滚动标识
+	 */
+	public String scrollId;
+	
+	/**
+	 * 最后一条命中文档的排序值
+	 */
+	public ArrayList<Object> lastSort;
+}
@@ -0,0 +1,48 @@
+package com.df.plugin.source.elastic.dto;
+
+import java.util.ArrayList;
+
+/**
+ * @author Lixiang
+ * @description 分片读取游标(每个分片独立维护检查点)
+ */
+public class SliceCursor {
+	/**
+	 * 分片ID
+	 */
+	public int sliceId;
+	
+	/**
+	 * 分片总数
+	 */
+	public int sliceMax;
+	
+	/**
+	 * 检查点属性名
+	 */
+	public String checkpointKey;
+	
+	/**
+	 * 最后一条已读文档的排序值
+	 */
+	public volatile ArrayList<Object> searchAfter;
+	
+	/**
+	 * 分片是否已读取完毕
+	 */
+	public volatile boolean finished;
+	
+	public SliceCursor(int sliceId,int sliceMax,String checkpointKey) {
+		this.sliceId=sliceId;
+		this.sliceMax=sliceMax;
+		this.checkpointKey=checkpointKey;
+	}
+	
+	/**
+	 * 是否为分片读取
+	 * @return 是否为分片读取
+	 */
+	public boolean isSliced() {
+		return 1<sliceMax;
+	}
+}
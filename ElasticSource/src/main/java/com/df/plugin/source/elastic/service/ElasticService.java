@@ -2,14 +2,24 @@ package com.df.plugin.source.elastic.service;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.df.plugin.source.elastic.config.ElasticConfig;
+import com.df.plugin.source.elastic.dto.SearchPage;
+import com.df.plugin.source.elastic.dto.SliceCursor;
 import com.df.plugin.source.elastic.util.ElasticUtil;
+import com.df.plugin.source.elastic.util.ElasticUtil.HitHandler;
 import com.github.lixiang2114.flow.comps.Channel;
 import com.github.lixiang2114.flow.util.CommonUtil;
 
@@ -29,6 +39,11 @@ public class ElasticService {
 	 */
 	private ElasticConfig elasticConfig;
 	
+	/**
+	 * watermark模式下去重表的最大容量
+	 */
+	private static final int MAX_READ_SIZE=100000;
+	
 	/**
 	 * 日志工具
 	 */
@@ -46,64 +61,13 @@ public class ElasticService {
 	 */
 	public Object startManualETLProcess(Channel<String> sourceToFilterChannel) throws Exception {
 		log.info("execute elastic source process...");
-		String indexName=elasticConfig.indexName;
-		HashMap<String,Object> queryParamDict=elasticConfig.queryParamDict;
-		
 		try{
-			while(elasticConfig.flow.sourceStart) {
-				int len=0;
-				int counter=0;
-				ArrayList<HashMap> docList=null;
-				len=(docList=elasticUtil.pull(indexName, queryParamDict)).size();
-				for(int i=0;i<len;i++,counter++) {
-					HashMap<String,Object> docMeta=docList.get(i);
-					if(null==docMeta || docMeta.isEmpty()) continue;
-					HashMap<String,Object> doc=(HashMap<String,Object>)docMeta.get("_source");
-					
-					for(String timeField:elasticConfig.timeFieldSet) {
-						Object value=doc.get(timeField);
-						if(null==value) continue;
-						doc.put(timeField, value.toString().replace('T', ' ').replace(elasticConfig.timeZone, ""));
-					}
-					
-					switch(elasticConfig.outFormat) {
-						case "map":
-							sourceToFilterChannel.put(CommonUtil.javaToJsonStr(doc));
-							break;
-						case "qstr":
-							StringBuilder recordQuery=new StringBuilder("");
-							for(Map.Entry<String, Object> entry:doc.entrySet()) {
-								Object value=entry.getValue();
-								if(null==value) value="null";
-								if(java.util.Date.class.isAssignableFrom(value.getClass())) {
-									recordQuery.append(entry.getKey().trim()).append("=").append(CommonUtil.transferType(value, String.class)).append("&");
-								}else{
-									recordQuery.append(entry.getKey().trim()).append("=").append(value).append("&");
-								}
-							}
-							if(0==recordQuery.length()) continue;
-							sourceToFilterChannel.put(recordQuery.deleteCharAt(recordQuery.length()-1).toString());
-							break;
-						default:
-							StringBuilder recordValues=new StringBuilder("");
-							for(Map.Entry<String, Object> entry:doc.entrySet()) {
-								Object value=entry.getValue();
-								if(null==value) value="null";
-								if(java.util.Date.class.isAssignableFrom(value.getClass())) {
-									recordValues.append(CommonUtil.transferType(value, String.class)).append(",");
-								}else{
-									recordValues.append(value).append(",");
-								}
-							}
-							if(0==recordValues.length()) continue;
-							sourceToFilterChannel.put(recordValues.deleteCharAt(recordValues.length()-1).toString());
-					}
-				}
-				
-				if(counter<elasticConfig.batchSize && !elasticConfig.realtime) break;
-				queryParamDict.put("from", elasticConfig.startIndex=elasticConfig.startIndex+counter);
-				if(counter>=elasticConfig.batchSize) continue;
-				Thread.sleep(2000L);
+			if("searchAfter".equals(elasticConfig.pageMode)) {
+				searchAfterETL(sourceToFilterChannel);
+			}else if("watermark".equals(elasticConfig.pageMode)) {
+				watermarkETL(sourceToFilterChannel);
+			}else{
+				fromSizeETL(sourceToFilterChannel);
 			}
 			
 			log.info("ElasticSource plugin etl process normal exit,execute checkpoint...");
@@ -120,6 +84,355 @@ public class ElasticService {
 		return true;
 	}
 	
+	/**
+	 * 按from/size分页读取索引库
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void fromSizeETL(Channel<String> sourceToFilterChannel) throws Exception {
+		String indexName=elasticConfig.indexName;
+		HashMap<String,Object> queryDict=newQueryDict();
+		while(elasticConfig.flow.sourceStart) {
+			queryDict.put("from", elasticConfig.startIndex);
+			int counter=elasticUtil.search(indexName+"/_search", queryDict, searchHit->sendSource(searchHit.source,sourceToFilterChannel)).hitCount;
+			
+			if(counter<elasticConfig.batchSize && !elasticConfig.realtime) break;
+			elasticConfig.queryParamDict.put("from", elasticConfig.startIndex=elasticConfig.startIndex+counter);
+			if(counter>=elasticConfig.batchSize) continue;
+			Thread.sleep(2000L);
+		}
+	}
+	
+	/**
+	 * 按排序值游标(search_after)分页读取索引库
+	 * slices大于1时按分片并行读取,每个分片独立维护检查点;集群支持时间点(PIT)时所有分片共享同一个时间点,否则使用分片滚动查询(scroll)
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void searchAfterETL(Channel<String> sourceToFilterChannel) throws Exception {
+		SliceCursor[] sliceCursors=elasticConfig.sliceCursors;
+		String pitId=elasticUtil.openPit(elasticConfig.indexName, elasticConfig.pitKeepAlive);
+		if(null==elasticConfig.tiebreaker) {
+			if(null==pitId && 1==sliceCursors.length) throw new RuntimeException("No Tiebreaker Specified,a unique field with doc values is required without point in time...");
+			if(null!=pitId && elasticConfig.realtime) log.warn("tiebreaker _shard_doc is only stable within one point in time,new documents may be missed in realtime,configure a unique field with doc values as tiebreaker...");
+		}
+		if(1==sliceCursors.length) {
+			try{
+				searchAfterETL(sliceCursors[0],pitId,sourceToFilterChannel);
+			}finally{
+				elasticUtil.closePit(pitId);
+			}
+			return;
+		}
+		
+		if(null==pitId && elasticConfig.realtime) log.warn("sliced scroll does not support realtime,each slice exits after reading to the end...");
+		ExecutorService sliceExecutor=Executors.newFixedThreadPool(sliceCursors.length);
+		try{
+			ArrayList<Future<?>> futureList=new ArrayList<Future<?>>();
+			for(SliceCursor sliceCursor:sliceCursors) {
+				if(sliceCursor.finished) {
+					log.info("slice {} is already finished,skip...",sliceCursor.sliceId);
+					continue;
+				}
+				
+				futureList.add(sliceExecutor.submit(()->{
+					if(null==pitId) {
+						scrollETL(sliceCursor,sourceToFilterChannel);
+					}else{
+						searchAfterETL(sliceCursor,pitId,sourceToFilterChannel);
+					}
+					return null;
+				}));
+			}
+			
+			for(Future<?> future:futureList) {
+				try{
+					future.get();
+				}catch(ExecutionException e) {
+					log.error("slice reader occur error...",e.getCause());
+				}
+			}
+		}finally{
+			sliceExecutor.shutdownNow();
+			elasticUtil.closePit(pitId);
+		}
+	}
+	
+	/**
+	 * 按排序值游标(search_after)分页读取索引库(单个分片)
+	 * 在时间点(PIT)上分页以获得一致的数据视图,读到末尾后(realtime=true)重新打开时间点以读取新写入的文档
+	 * @param sliceCursor 分片游标
+	 * @param sharedPitId 共享的时间点标识(为null时不使用时间点)
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void searchAfterETL(SliceCursor sliceCursor,String sharedPitId,Channel<String> sourceToFilterChannel) throws Exception {
+		String indexName=elasticConfig.indexName;
+		ArrayList<Object> sortList=getSortList();
+		String pitId=sharedPitId;
+		String ownPitId=null;
+		try{
+			while(elasticConfig.flow.sourceStart) {
+				HashMap<String,Object> queryDict=newQueryDict();
+				queryDict.put("size", elasticConfig.batchSize);
+				queryDict.put("sort", sortList);
+				queryDict.put("track_total_hits", false);
+				if(null!=sliceCursor.searchAfter) queryDict.put("search_after", sliceCursor.searchAfter);
+				if(null!=pitId) queryDict.put("pit", getPitDict(pitId));
+				if(sliceCursor.isSliced()) queryDict.put("slice", getSliceDict(sliceCursor));
+				
+				SearchPage searchPage=elasticUtil.search(null!=pitId?"/_search":indexName+"/_search", queryDict, searchHit->{
+					sendSource(searchHit.source,sourceToFilterChannel);
+					sliceCursor.searchAfter=searchHit.sort;
+				});
+				if(null!=pitId && null!=searchPage.pitId) {
+					pitId=searchPage.pitId;
+					if(null!=ownPitId) ownPitId=pitId;
+				}
+				
+				if(searchPage.hitCount>=elasticConfig.batchSize) continue;
+				if(!elasticConfig.realtime) {
+					sliceCursor.finished=sliceCursor.isSliced();
+					break;
+				}
+				
+				if(null!=ownPitId) elasticUtil.closePit(ownPitId);
+				Thread.sleep(2000L);
+				if(null!=pitId) pitId=ownPitId=elasticUtil.openPit(indexName, elasticConfig.pitKeepAlive);
+			}
+		}finally{
+			elasticUtil.closePit(ownPitId);
+		}
+	}
+	
+	/**
+	 * 按分片滚动查询(scroll)读取索引库(集群不支持时间点时的分片读取方式)
+	 * 滚动查询无法从中间位置恢复,未读取完毕的分片在重启后从头读取
+	 * @param sliceCursor 分片游标
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void scrollETL(SliceCursor sliceCursor,Channel<String> sourceToFilterChannel) throws Exception {
+		HashMap<String,Object> queryDict=newQueryDict();
+		queryDict.put("size", elasticConfig.batchSize);
+		queryDict.put("sort", Collections.singletonList("_doc"));
+		queryDict.put("slice", getSliceDict(sliceCursor));
+		
+		String scrollId=null;
+		try{
+			HitHandler hitHandler=searchHit->sendSource(searchHit.source,sourceToFilterChannel);
+			SearchPage searchPage=elasticUtil.search(elasticConfig.indexName+"/_search", Collections.singletonMap("scroll", elasticConfig.pitKeepAlive), queryDict, hitHandler);
+			while(elasticConfig.flow.sourceStart) {
+				scrollId=searchPage.scrollId;
+				if(0==searchPage.hitCount) {
+					sliceCursor.finished=true;
+					break;
+				}
+				searchPage=elasticUtil.scroll(scrollId, elasticConfig.pitKeepAlive, hitHandler);
+			}
+		}finally{
+			elasticUtil.clearScroll(scrollId);
+		}
+	}
+	
+	/**
+	 * 按时间水位线增量读取索引库
+	 * 每轮查询水位线字段大于(水位线-重叠时长)的文档,按水位线字段+决胜字段排序并以search_after分页,
+	 * 重叠区间内已读过的文档通过有界去重表跳过,每轮的查询代价只与新增(或更新)的文档数量相关
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void watermarkETL(Channel<String> sourceToFilterChannel) throws Exception {
+		String watermarkField=elasticConfig.watermarkField;
+		ArrayList<Object> sortList=new ArrayList<Object>();
+		sortList.add(Collections.singletonMap(watermarkField, "asc"));
+		sortList.add(Collections.singletonMap(elasticConfig.tiebreaker, "asc"));
+		
+		Object userQuery=elasticConfig.queryParamDict.get("query");
+		LinkedHashMap<String,Long> readDict=new LinkedHashMap<String,Long>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+				return size()>MAX_READ_SIZE;
+			}
+		};
+		while(elasticConfig.flow.sourceStart) {
+			HashMap<String,Object> queryDict=newQueryDict();
+			queryDict.put("size", elasticConfig.batchSize);
+			queryDict.put("sort", sortList);
+			queryDict.put("track_total_hits", false);
+			
+			Long lowerBound=null==elasticConfig.watermark?null:elasticConfig.watermark-elasticConfig.overlapMills;
+			queryDict.put("query", getWatermarkQuery(userQuery,lowerBound));
+			
+			while(elasticConfig.flow.sourceStart) {
+				SearchPage searchPage=elasticUtil.search(elasticConfig.indexName+"/_search", queryDict, searchHit->{
+					Object markValue=searchHit.sort.get(0);
+					if(!(markValue instanceof Number)) return;
+					
+					long mark=((Number)markValue).longValue();
+					if(Long.MAX_VALUE==mark || Long.MIN_VALUE==mark) return;
+					if(null!=readDict.putIfAbsent(searchHit.id+"@"+mark, mark)) return;
+					
+					sendSource(searchHit.source,sourceToFilterChannel);
+					if(null==elasticConfig.watermark || mark>elasticConfig.watermark) elasticConfig.watermark=mark;
+				});
+				if(searchPage.hitCount<elasticConfig.batchSize) break;
+				queryDict.put("search_after", searchPage.lastSort);
+			}
+			
+			evictReadDict(readDict);
+			if(!elasticConfig.realtime) break;
+			Thread.sleep(2000L);
+		}
+	}
+	
+	/**
+	 * 获取水位线查询条件(用户查询条件与水位线区间条件的交集)
+	 * 尚无水位线时仅要求水位线字段存在,缺失该字段的文档按哨兵值排序,不能参与水位线推进
+	 * @param userQuery 用户查询条件
+	 * @param lowerBound 水位线下界(不包含,为null时不限下界)
+	 * @return 查询条件
+	 */
+	private HashMap<String,Object> getWatermarkQuery(Object userQuery,Long lowerBound) {
+		HashMap<String,Object> markDict=new HashMap<String,Object>();
+		if(null==lowerBound) {
+			markDict.put("exists", Collections.singletonMap("field", elasticConfig.watermarkField));
+		}else{
+			markDict.put("range", Collections.singletonMap(elasticConfig.watermarkField, Collections.singletonMap("gt", lowerBound)));
+		}
+		
+		ArrayList<Object> filterList=new ArrayList<Object>();
+		if(null!=userQuery) filterList.add(userQuery);
+		filterList.add(markDict);
+		return new HashMap<String,Object>(Collections.singletonMap("bool", Collections.singletonMap("filter", filterList)));
+	}
+	
+	/**
+	 * 清理去重表中已移出重叠区间的文档(去重表容量在写入时限制)
+	 * @param readDict 去重表(文档标识@水位线值->水位线值)
+	 */
+	private void evictReadDict(LinkedHashMap<String,Long> readDict) {
+		if(null==elasticConfig.watermark) return;
+		long lowerBound=elasticConfig.watermark-elasticConfig.overlapMills;
+		Iterator<Long> iterator=readDict.values().iterator();
+		while(iterator.hasNext()) {
+			if(iterator.next()>lowerBound) continue;
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * 获取分片查询参数
+	 * @param sliceCursor 分片游标
+	 * @return 分片查询参数
+	 */
+	private HashMap<String,Object> getSliceDict(SliceCursor sliceCursor) {
+		HashMap<String,Object> sliceDict=new HashMap<String,Object>();
+		sliceDict.put("id", sliceCursor.sliceId);
+		sliceDict.put("max", sliceCursor.sliceMax);
+		return sliceDict;
+	}
+	
+	/**
+	 * 获取search_after排序列表(排序字段+决胜字段,均为升序)
+	 * 未配置决胜字段时按_shard_doc决胜(仅在时间点上可用,无需fielddata)
+	 * @return 排序列表
+	 */
+	private ArrayList<Object> getSortList() {
+		ArrayList<Object> sortList=new ArrayList<Object>();
+		if(null!=elasticConfig.sortField) sortList.add(Collections.singletonMap(elasticConfig.sortField, "asc"));
+		sortList.add(Collections.singletonMap(null==elasticConfig.tiebreaker?"_shard_doc":elasticConfig.tiebreaker, "asc"));
+		return sortList;
+	}
+	
+	/**
+	 * 获取PIT查询参数
+	 * @param pitId PIT标识
+	 * @return PIT查询参数
+	 */
+	private HashMap<String,Object> getPitDict(String pitId) {
+		HashMap<String,Object> pitDict=new HashMap<String,Object>();
+		pitDict.put("id", pitId);
+		pitDict.put("keep_alive", elasticConfig.pitKeepAlive);
+		return pitDict;
+	}
+	
+	/**
+	 * 创建本次查询的查询参数(复制selectSQL参数,去掉from并下推_source字段过滤)
+	 * @return 查询参数
+	 */
+	private HashMap<String,Object> newQueryDict() {
+		HashMap<String,Object> queryDict=new HashMap<String,Object>(elasticConfig.queryParamDict);
+		queryDict.remove("from");
+		if(null!=elasticConfig.includes) queryDict.put("_source", elasticConfig.includes);
+		return queryDict;
+	}
+	
+	/**
+	 * 按输出格式发送文档到下游通道
+	 * 输出格式为map且无需转换时间字段时直接发送_source的JSON字串,否则解析为字典后发送
+	 * @param source 文档JSON字串
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws InterruptedException
+	 */
+	private void sendSource(String source,Channel<String> sourceToFilterChannel) throws InterruptedException {
+		if(null==source) return;
+		if("map".equals(elasticConfig.outFormat) && elasticConfig.timeFieldSet.isEmpty()) {
+			sourceToFilterChannel.put(source);
+			return;
+		}
+		sendDoc(CommonUtil.jsonStrToJava(source, HashMap.class),sourceToFilterChannel);
+	}
+	
+	/**
+	 * 按输出格式发送文档到下游通道
+	 * @param doc 文档字典
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws InterruptedException
+	 */
+	private void sendDoc(HashMap<String,Object> doc,Channel<String> sourceToFilterChannel) throws InterruptedException {
+		if(null==doc) return;
+		for(String timeField:elasticConfig.timeFieldSet) {
+			Object value=doc.get(timeField);
+			if(null==value) continue;
+			doc.put(timeField, value.toString().replace('T', ' ').replace(elasticConfig.timeZone, ""));
+		}
+		
+		switch(elasticConfig.outFormat) {
+			case "map":
+				sourceToFilterChannel.put(CommonUtil.javaToJsonStr(doc));
+				break;
+			case "qstr":
+				StringBuilder recordQuery=new StringBuilder("");
+				for(Map.Entry<String, Object> entry:doc.entrySet()) {
+					Object value=entry.getValue();
+					if(null==value) value="null";
+					if(java.util.Date.class.isAssignableFrom(value.getClass())) {
+						recordQuery.append(entry.getKey().trim()).append("=").append(CommonUtil.transferType(value, String.class)).append("&");
+					}else{
+						recordQuery.append(entry.getKey().trim()).append("=").append(value).append("&");
+					}
+				}
+				if(0==recordQuery.length()) return;
+				sourceToFilterChannel.put(recordQuery.deleteCharAt(recordQuery.length()-1).toString());
+				break;
+			default:
+				StringBuilder recordValues=new StringBuilder("");
+				for(Map.Entry<String, Object> entry:doc.entrySet()) {
+					Object value=entry.getValue();
+					if(null==value) value="null";
+					if(java.util.Date.class.isAssignableFrom(value.getClass())) {
+						recordValues.append(CommonUtil.transferType(value, String.class)).append(",");
+					}else{
+						recordValues.append(value).append(",");
+					}
+				}
+				if(0==recordValues.length()) return;
+				sourceToFilterChannel.put(recordValues.deleteCharAt(recordValues.length()-1).toString());
+		}
+	}
+	
 	/**
 	 * 停止ETL流程
 	 */
@@ -1,5 +1,6 @@
 package com.df.plugin.source.elastic.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -7,7 +8,6 @@ import java.util.Map;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.ParseException;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
@@ -15,8 +15,18 @@ import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.df.plugin.source.elastic.dto.SearchHit;
+import com.df.plugin.source.elastic.dto.SearchPage;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.lixiang2114.flow.util.CommonUtil;
 
 /**
@@ -30,6 +40,16 @@ public class ElasticUtil {
 	 */
 	private RestClient restClient;
 	
+	/**
+	 * JSON流式解析工厂(复制_source时不在根值之间写入分隔符)
+	 */
+	private static final JsonFactory JSON_FACTORY=new ObjectMapper().getFactory().setRootValueSeparator(null);
+	
+	/**
+	 * 日志工具
+	 */
+	private static final Logger log=LoggerFactory.getLogger(ElasticUtil.class);
+	
 	public ElasticUtil(RestClient restClient) {
 		this.restClient=restClient;
 	}
@@ -66,36 +86,179 @@ public class ElasticUtil {
 	}
 	
 	/**
-	 * 发起HTTP请求
-	 * @param indexName 索引库名
+	 * 执行查询请求并流式解析响应
+	 * @param uri 请求路径(如:/索引/_search,使用PIT时为/_search)
 	 * @param queryParam 查询参数(实体或字典)
-	 * @return 响应对象
+	 * @param hitHandler 命中文档处理器
+	 * @return 查询结果页
+	 * @throws Exception
 	 */
-	public ArrayList<HashMap> pull(String indexName,Object queryParam) {
-		Response response=executeGet(indexName+"/_search",queryParam,new BasicHeader("Content-Type","application/json;charset=UTF-8"));
+	public SearchPage search(String uri,Object queryParam,HitHandler hitHandler) throws Exception {
+		return search(uri,null,queryParam,hitHandler);
+	}
+	
+	/**
+	 * 执行查询请求并流式解析响应
+	 * 响应体由RestClient缓冲在内存中(默认上限100MB),从缓冲的响应实体逐个命中文档解析后交给处理器,
+	 * 不构建整页的字典或树,_source保持为JSON字串而不转换为字典
+	 * @param uri 请求路径
+	 * @param queryString 查询字串(如:scroll=1m)
+	 * @param queryParam 查询参数(实体或字典)
+	 * @param hitHandler 命中文档处理器
+	 * @return 查询结果页
+	 * @throws Exception
+	 */
+	public SearchPage search(String uri,Map<String,String> queryString,Object queryParam,HitHandler hitHandler) throws Exception {
+		Request request=new Request("POST",uri);
+		if(null!=queryString) request.addParameters(queryString);
+		request.setEntity(new StringEntity(CommonUtil.javaToJsonStr(queryParam),ContentType.APPLICATION_JSON));
 		
-		HttpEntity entity=null;
-		if(null==response || null==(entity=response.getEntity())) return null;
+		SearchPage searchPage=new SearchPage();
+		HttpEntity entity=restClient.performRequest(request).getEntity();
+		if(null==entity) return searchPage;
 		
-		String responseBody=null;
-		try {
-			responseBody=EntityUtils.toString(entity);
-		} catch (ParseException | IOException e) {
-			e.printStackTrace();
+		try(JsonParser parser=JSON_FACTORY.createParser(entity.getContent())){
+			if(JsonToken.START_OBJECT!=parser.nextToken()) return searchPage;
+			while(JsonToken.FIELD_NAME==parser.nextToken()) {
+				String fieldName=parser.getCurrentName();
+				parser.nextToken();
+				switch(fieldName) {
+					case "pit_id":
+						searchPage.pitId=parser.getValueAsString();
+						break;
+					case "_scroll_id":
+						searchPage.scrollId=parser.getValueAsString();
+						break;
+					case "hits":
+						parseHits(parser,searchPage,hitHandler);
+						break;
+					default:
+						parser.skipChildren();
+				}
+			}
+		}
+		return searchPage;
+	}
+	
+	/**
+	 * 解析hits对象
+	 * @param parser JSON解析器(位于hits对象起始处)
+	 * @param searchPage 查询结果页
+	 * @param hitHandler 命中文档处理器
+	 * @throws Exception
+	 */
+	private void parseHits(JsonParser parser,SearchPage searchPage,HitHandler hitHandler) throws Exception {
+		if(JsonToken.START_OBJECT!=parser.currentToken()) {
+			parser.skipChildren();
+			return;
 		}
 		
-		return null==responseBody?null:(ArrayList<HashMap>)CommonUtil.getOgnlValue(responseBody, "hits.hits");
+		while(JsonToken.FIELD_NAME==parser.nextToken()) {
+			String fieldName=parser.getCurrentName();
+			if(JsonToken.START_ARRAY!=parser.nextToken() || !"hits".equals(fieldName)) {
+				parser.skipChildren();
+				continue;
+			}
+			
+			SearchHit searchHit=new SearchHit();
+			ByteArrayOutputStream sourceBuffer=new ByteArrayOutputStream(1024);
+			while(JsonToken.START_OBJECT==parser.nextToken()) {
+				searchHit.reset();
+				while(JsonToken.FIELD_NAME==parser.nextToken()) {
+					String hitField=parser.getCurrentName();
+					parser.nextToken();
+					switch(hitField) {
+						case "_id":
+							searchHit.id=parser.getValueAsString();
+							break;
+						case "sort":
+							searchHit.sort=parser.readValueAs(ArrayList.class);
+							break;
+						case "_source":
+							sourceBuffer.reset();
+							try(JsonGenerator generator=JSON_FACTORY.createGenerator(sourceBuffer)){
+								generator.copyCurrentStructure(parser);
+							}
+							searchHit.source=sourceBuffer.toString("UTF-8");
+							break;
+						default:
+							parser.skipChildren();
+					}
+				}
+				
+				searchPage.hitCount++;
+				searchPage.lastSort=searchHit.sort;
+				hitHandler.handle(searchHit);
+			}
+		}
 	}
 	
 	/**
-	 * 发起HTTP请求
-	 * @param uri 请求路径
-	 * @param msgBody 消息体对象
-	 * @param headers 头域列表
-	 * @return 响应对象
+	 * 打开时间点(PIT)
+	 * @param indexName 索引库名(以'/'开头)
+	 * @param keepAlive 保持时间(如:1m)
+	 * @return PIT标识,集群不支持PIT(7.10以下版本)时返回null
+	 * @throws IOException
+	 */
+	public String openPit(String indexName,String keepAlive) throws IOException {
+		Request request=new Request("POST",indexName+"/_pit");
+		request.addParameter("keep_alive", keepAlive);
+		try{
+			HashMap<String,Object> resultDict=CommonUtil.jsonStrToJava(EntityUtils.toString(restClient.performRequest(request).getEntity()), HashMap.class);
+			return null==resultDict?null:(String)resultDict.get("id");
+		}catch(ResponseException e) {
+			log.warn("point in time is not supported,use search_after without pit: {}",e.getResponse().getStatusLine());
+			return null;
+		}
+	}
+	
+	/**
+	 * 关闭时间点(PIT)
+	 * @param pitId PIT标识
 	 */
-	private Response executeGet(String uri,Object msgBody,Header... headers) {
-		return executeRequest(uri,"GET",null,msgBody,headers);
+	public void closePit(String pitId) {
+		if(null==pitId) return;
+		Request request=new Request("DELETE","/_pit");
+		HashMap<String,Object> bodyDict=new HashMap<String,Object>();
+		bodyDict.put("id", pitId);
+		request.setEntity(new StringEntity(CommonUtil.javaToJsonStr(bodyDict),ContentType.APPLICATION_JSON));
+		try{
+			restClient.performRequest(request);
+		}catch(IOException e) {
+			log.warn("close point in time occur error: {}",e.getMessage());
+		}
+	}
+	
+	/**
+	 * 获取滚动查询的下一页
+	 * @param scrollId 滚动标识
+	 * @param keepAlive 保持时间(如:1m)
+	 * @param hitHandler 命中文档处理器
+	 * @return 查询结果页
+	 * @throws Exception
+	 */
+	public SearchPage scroll(String scrollId,String keepAlive,HitHandler hitHandler) throws Exception {
+		HashMap<String,Object> bodyDict=new HashMap<String,Object>();
+		bodyDict.put("scroll", keepAlive);
+		bodyDict.put("scroll_id", scrollId);
+		return search("/_search/scroll",bodyDict,hitHandler);
+	}
+	
+	/**
+	 * 清除滚动查询上下文
+	 * @param scrollId 滚动标识
+	 */
+	public void clearScroll(String scrollId) {
+		if(null==scrollId) return;
+		Request request=new Request("DELETE","/_search/scroll");
+		HashMap<String,Object> bodyDict=new HashMap<String,Object>();
+		bodyDict.put("scroll_id", scrollId);
+		request.setEntity(new StringEntity(CommonUtil.javaToJsonStr(bodyDict),ContentType.APPLICATION_JSON));
+		try{
+			restClient.performRequest(request);
+		}catch(IOException e) {
+			log.warn("clear scroll occur error: {}",e.getMessage());
+		}
 	}
 	
 	/**
@@ -158,4 +321,17 @@ public class ElasticUtil {
 		for(Header header:headers) builder.addHeader(header.getName(), header.getValue());
 		 request.setOptions(builder);
 	}
+	
+	/**
+	 * @author Lixiang
+	 * @description 命中文档处理器
+	 */
+	public static interface HitHandler {
+		/**
+		 * 处理命中文档(命中文档实例会被复用,处理器不应持有该实例)
+		 * @param searchHit 命中文档
+		 * @throws Exception
+		 */
+		public void handle(SearchHit searchHit) throws Exception;
+	}
 }
@@ -101,6 +101,7 @@ public class MongoSink extends SinkPluginAdapter{
 	@Override
 	public Object stop(Object params) throws Exception {
 		flow.sinkStart=false;
+		mdbService.stop();
 		return true;
 	}
 
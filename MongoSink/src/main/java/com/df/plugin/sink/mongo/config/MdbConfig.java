@@ -14,6 +14,8 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.github.lixiang2114.flow.comps.Flow;
 import com.github.lixiang2114.flow.util.CommonUtil;
@@ -39,6 +41,14 @@ public class MdbConfig {
 	 */
 	public  String idField;
 	
+	/**
+	 * 写入模式
+	 * insert: 插入(主键已存在的文档被忽略)
+	 * replace: 按_id替换,不存在则插入
+	 * update: 按_id更新字段,不存在则插入
+	 */
+	public String writeMode;
+	
 	/**
 	 * 处理记录中的库名字段
 	 */
@@ -90,6 +100,11 @@ public class MdbConfig {
 	 */
 	public Integer batchSize;
 	
+	/**
+	 * 最大在途批次数量(同时也是批量写出线程数量)
+	 */
+	public Integer maxInFlightBatches;
+	
 	/**
 	 * MDB客户端配置
 	 */
@@ -182,6 +197,16 @@ public class MdbConfig {
      */
 	private static final Pattern IP_REGEX=Pattern.compile("^\\d+\\.\\d+\\.\\d+\\.\\d+$");
 	
+	/**
+	 * 写出模式取值集合
+	 */
+	private static final Set<String> WRITE_MODES=new HashSet<String>(Arrays.asList("insert","replace","update"));
+	
+	/**
+	 * 日志工具
+	 */
+	private static final Logger log=LoggerFactory.getLogger(MdbConfig.class);
+	
 	public MdbConfig(){}
 	
 	public MdbConfig(Flow flow) {
@@ -236,11 +261,21 @@ public class MdbConfig {
 		String batchSizeStr=config.getProperty("batchSize","").trim();
 		if(!batchSizeStr.isEmpty()) this.batchSize=Integer.parseInt(batchSizeStr);
 		
+		String maxInFlightBatchesStr=config.getProperty("maxInFlightBatches","").trim();
+		this.maxInFlightBatches=maxInFlightBatchesStr.isEmpty()?1:Integer.parseInt(maxInFlightBatchesStr);
+		
 		String idFieldStr=config.getProperty("idField","").trim();
 		if(!idFieldStr.isEmpty()) {
 			this.idField=idFieldStr;
 		}
 		
+		String writeModeStr=config.getProperty("writeMode","").trim();
+		this.writeMode=writeModeStr.isEmpty()?"insert":writeModeStr;
+		if(!WRITE_MODES.contains(writeMode)) {
+			log.error("Wrong Write Mode: "+writeMode+",Support Write Mode:"+WRITE_MODES);
+			throw new RuntimeException("Wrong Write Mode: "+writeMode+",Support Write Mode:"+WRITE_MODES);
+		}
+		
 		String fieldListStr=config.getProperty("fieldList","").trim();
 		if(!fieldListStr.isEmpty()){
 			String[] fields=COMMA_REGEX.split(fieldListStr);
@@ -426,6 +461,8 @@ public class MdbConfig {
 		HashMap<String,Object> map=new HashMap<String,Object>();
 		map.put("parse", parse);
 		map.put("idField", idField);
+		map.put("writeMode", writeMode);
+		map.put("maxInFlightBatches", maxInFlightBatches);
 		map.put("dbField", dbField);
 		map.put("fieldList", fieldList);
 		map.put("hostList", hostList);
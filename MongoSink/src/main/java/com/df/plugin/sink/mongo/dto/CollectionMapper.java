@@ -1,24 +1,36 @@
 package com.df.plugin.sink.mongo.dto;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.df.plugin.sink.mongo.config.MdbConfig;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
 
 /**
  * @author Lixiang
  * @description 集合映射器
+ * 以无序批量写(bulkWrite)发送写模型,部分失败时仅重试失败的写模型(及其后同一_id的写模型)
  * @param <E>
  */
 public class CollectionMapper<E> {
 	/**
-	 * 集合表数据
+	 * 集合表写模型(发送失败后仅保留失败的写模型)
 	 */
-	private List<E> docList;
+	private List<WriteModel<E>> modelList;
 	
 	/**
 	 * MongoDB配置
@@ -30,20 +42,38 @@ public class CollectionMapper<E> {
 	 */
 	private MongoCollection<E> collection;
 	
+	/**
+	 * 主键重复错误码
+	 */
+	private static final int DUPLICATE_KEY_CODE=11000;
+	
+	/**
+	 * 无序批量写选项
+	 */
+	private static final BulkWriteOptions UNORDERED=new BulkWriteOptions().ordered(false);
+	
 	/**
 	 * 日志工具
 	 */
 	private static final Logger log=LoggerFactory.getLogger(CollectionMapper.class);
 	
-	public CollectionMapper(E doc,MongoCollection<E> collection) {
-		this.docList=new ArrayList<E>();
+	public CollectionMapper(WriteModel<E> model,MongoCollection<E> collection) {
+		this.modelList=new ArrayList<WriteModel<E>>();
 		this.collection=collection;
-		this.docList.add(doc);
+		this.modelList.add(model);
 	}
 	
-	public CollectionMapper(List<E> docList,MongoCollection<E> collection) {
+	public CollectionMapper(List<WriteModel<E>> modelList,MongoCollection<E> collection) {
 		this.collection=collection;
-		this.docList=docList;
+		this.modelList=modelList;
+	}
+	
+	/**
+	 * 添加写模型
+	 * @param model 写模型
+	 */
+	public void add(WriteModel<E> model) {
+		modelList.add(model);
 	}
 	
 	public void setMdbConfig(MdbConfig mdbConfig) {
@@ -52,29 +82,87 @@ public class CollectionMapper<E> {
 
 	/**
 	 * 发送数据
+	 * 插入时主键已存在的文档视为已写入而不再重试
 	 * @return 是否发送成功
 	 * @throws InterruptedException
 	 */
 	public boolean send() throws InterruptedException {
-		if(null==collection || null==docList || docList.isEmpty()) return false;
-		boolean loop=false;
+		if(null==collection || null==modelList || modelList.isEmpty()) return false;
 		int times=0;
-		do{
+		while(true) {
 			try{
-				collection.insertMany(docList);
-				loop=false;
+				collection.bulkWrite(modelList,UNORDERED);
+				modelList=new ArrayList<WriteModel<E>>();
+				return true;
+			}catch(MongoBulkWriteException e) {
+				retainFailedModels(e);
+				if(modelList.isEmpty()) return true;
+				log.error("send occur excepton,{} models failed: {}",modelList.size(),e.getMessage());
 			}catch(Exception e) {
-				times++;
-				loop=true;
-				Thread.sleep(mdbConfig.failMaxWaitMills);
 				log.error("send occur excepton: "+e.getMessage());
 			}
-		}while(loop && times<mdbConfig.maxRetryTimes);
-		return !loop;
+			
+			if(++times>=mdbConfig.maxRetryTimes) return false;
+			Thread.sleep(mdbConfig.failMaxWaitMills);
+		}
+	}
+	
+	/**
+	 * 仅保留批量写中失败的写模型
+	 * 失败的替换或更新之后同一_id的写模型即使已写入也一并保留,重试时按原顺序重新写入,避免较早的值覆盖较新的值;
+	 * 存在写关注错误时保留全部写模型(已写入的插入在重试时以主键重复被忽略,替换和更新可重复执行)
+	 * @param e 批量写异常
+	 */
+	private void retainFailedModels(MongoBulkWriteException e) {
+		boolean retainAll=null!=e.getWriteConcernError();
+		boolean[] failedFlags=new boolean[modelList.size()];
+		boolean[] skipFlags=new boolean[modelList.size()];
+		for(BulkWriteError writeError:e.getWriteErrors()) {
+			int index=writeError.getIndex();
+			if(DUPLICATE_KEY_CODE==writeError.getCode() && modelList.get(index) instanceof InsertOneModel) {
+				skipFlags[index]=true;
+				continue;
+			}
+			failedFlags[index]=true;
+		}
+		
+		HashSet<BsonValue> failedIds=new HashSet<BsonValue>();
+		ArrayList<WriteModel<E>> failedList=new ArrayList<WriteModel<E>>();
+		for(int i=0;i<failedFlags.length;i++) {
+			if(skipFlags[i]) continue;
+			WriteModel<E> model=modelList.get(i);
+			if(!retainAll && !failedFlags[i]) {
+				if(failedIds.isEmpty()) continue;
+				BsonValue modelId=getModelId(model);
+				if(null==modelId || !failedIds.contains(modelId)) continue;
+			}else if(failedFlags[i]) {
+				BsonValue modelId=getModelId(model);
+				if(null!=modelId) failedIds.add(modelId);
+			}
+			failedList.add(model);
+		}
+		modelList=failedList;
+	}
+	
+	/**
+	 * 获取替换或更新写模型的_id(按_id过滤)
+	 * @param model 写模型
+	 * @return 文档_id,插入写模型返回null
+	 */
+	private BsonValue getModelId(WriteModel<E> model) {
+		Bson filter;
+		if(model instanceof ReplaceOneModel) {
+			filter=((ReplaceOneModel<E>)model).getFilter();
+		}else if(model instanceof UpdateOneModel) {
+			filter=((UpdateOneModel<E>)model).getFilter();
+		}else{
+			return null;
+		}
+		return filter.toBsonDocument(BsonDocument.class, collection.getCodecRegistry()).get("_id");
 	}
 	
 	public void clear() {
-		if(null==docList) return;
-		docList.clear();
+		if(null==modelList) return;
+		modelList.clear();
 	}
 }
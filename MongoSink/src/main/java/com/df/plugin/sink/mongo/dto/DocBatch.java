@@ -0,0 +1,57 @@
+package com.df.plugin.sink.mongo.dto;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * @author Lixiang
+ * @description 文档批次
+ * 添加时即按集合表命名空间归组写模型,发送时每个集合表一次批量写
+ */
+@SuppressWarnings("unchecked")
+public class DocBatch {
+	/**
+	 * 批次文档数量
+	 */
+	public int size;
+	
+	/**
+	 * 集合表映射器字典
+	 */
+	private HashMap<CollectionWrapper<?>,CollectionMapper<?>> mapperDict=new HashMap<CollectionWrapper<?>,CollectionMapper<?>>();
+	
+	/**
+	 * 添加文档写模型
+	 * @param collectionWrapper 集合表包装器
+	 * @param model 写模型
+	 */
+	public <E> void add(CollectionWrapper<E> collectionWrapper,WriteModel<E> model) {
+		CollectionMapper<E> collectionMapper=(CollectionMapper<E>)mapperDict.get(collectionWrapper);
+		if(null==collectionMapper) mapperDict.put(collectionWrapper, collectionMapper=new CollectionMapper<E>(new ArrayList<WriteModel<E>>(),collectionWrapper.collection));
+		collectionMapper.add(model);
+		size++;
+	}
+	
+	/**
+	 * 获取各集合表的映射器
+	 * @return 集合表映射器
+	 */
+	public Collection<CollectionMapper<?>> getMappers() {
+		return mapperDict.values();
+	}
+	
+	public boolean isEmpty() {
+		return 0==size;
+	}
+	
+	/**
+	 * 清空批次(不影响已取出的映射器)
+	 */
+	public void clear() {
+		mapperDict=new HashMap<CollectionWrapper<?>,CollectionMapper<?>>();
+		size=0;
+	}
+}
@@ -0,0 +1,54 @@
+package com.df.plugin.sink.mongo.dto;
+
+import java.util.LinkedList;
+
+import com.df.plugin.sink.mongo.config.MdbConfig;
+
+/**
+ * @author Lixiang
+ * @description 映射器链
+ * 写出通道的批次发送失败后,该批次中失败的映射器及该通道后续的所有批次按序暂存于此,
+ * 重发时按序逐个发送,遇到失败即停止,以保证同一_id的文档不会被较早的值覆盖
+ */
+public class MapperChain {
+	/**
+	 * MongoDB配置
+	 */
+	private MdbConfig mdbConfig;
+
+	/**
+	 * 待发送的映射器(按写出顺序)
+	 */
+	private LinkedList<CollectionMapper<?>> mapperList=new LinkedList<CollectionMapper<?>>();
+
+	/**
+	 * 追加映射器
+	 * @param collectionMapper 集合映射器
+	 */
+	public synchronized void add(CollectionMapper<?> collectionMapper) {
+		mapperList.add(collectionMapper);
+	}
+
+	public void setMdbConfig(MdbConfig mdbConfig) {
+		this.mdbConfig = mdbConfig;
+	}
+
+	/**
+	 * 按序发送链中的映射器(已发送成功的映射器从链中移除)
+	 * @return 是否全部发送成功
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean send() throws InterruptedException {
+		while(!mapperList.isEmpty()) {
+			CollectionMapper<?> collectionMapper=mapperList.getFirst();
+			collectionMapper.setMdbConfig(mdbConfig);
+			if(!collectionMapper.send()) return false;
+			mapperList.removeFirst();
+		}
+		return true;
+	}
+
+	public synchronized int size() {
+		return mapperList.size();
+	}
+}
@@ -3,19 +3,37 @@ package com.df.plugin.sink.mongo.service;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.conversions.Bson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.df.plugin.sink.mongo.config.MdbConfig;
 import com.df.plugin.sink.mongo.dto.CollectionMapper;
 import com.df.plugin.sink.mongo.dto.CollectionWrapper;
+import com.df.plugin.sink.mongo.dto.DocBatch;
+import com.df.plugin.sink.mongo.dto.MapperChain;
+import com.df.plugin.sink.mongo.util.DocDecoder;
 import com.github.lixiang2114.flow.util.CommonUtil;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 
 /**
  * @author Lixiang
@@ -29,9 +47,64 @@ public class MdbService {
 	private MdbConfig mdbConfig;
 	
 	/**
-	 * 批量文档表
+	 * 批量文档批次
 	 */
-	public ArrayList<Document> batchList=new ArrayList<Document>();
+	public DocBatch docBatch=new DocBatch();
+	
+	/**
+	 * Json记录解码器(noParse模式)
+	 */
+	private DocDecoder docDecoder;
+	
+	/**
+	 * 默认集合表的BSON文档视图(noParse模式)
+	 */
+	private MongoCollection<RawBsonDocument> rawCollection;
+	
+	/**
+	 * 批量写出线程(每个线程对应一个通道,maxInFlightBatches=1时为null)
+	 */
+	private ExecutorService[] batchWriters;
+	
+	/**
+	 * 各通道的批量文档表
+	 */
+	private ArrayList<DocBatch> laneBatchList;
+	
+	/**
+	 * 各通道的失败映射器链(通道批次发送失败后,该通道后续批次按序追加到链中而不再写出)
+	 */
+	private MapperChain[] laneChains;
+	
+	/**
+	 * 在途批次许可
+	 */
+	private Semaphore inFlightPermits;
+	
+	/**
+	 * 无_id文档的通道轮询游标
+	 */
+	private int laneCursor;
+	
+	/**
+	 * 是否存在重试后仍失败的批次
+	 */
+	private volatile boolean batchFailed;
+	
+	/**
+	 * 不存在时插入的更新选项
+	 */
+	private static final UpdateOptions UPSERT_UPDATE=new UpdateOptions().upsert(true);
+	
+	/**
+	 * 不存在时插入的替换选项
+	 */
+	private static final ReplaceOptions UPSERT_REPLACE=new ReplaceOptions().upsert(true);
+	
+	/**
+	 * BSON文档编解码器
+	 */
+	private static final BsonDocumentCodec BSON_DOCUMENT_CODEC=new BsonDocumentCodec();
 	
 	/**
 	 * 日志工具
@@ -42,6 +115,23 @@ public class MdbService {
 	
 	public MdbService(MdbConfig mdbConfig){
 		this.mdbConfig=mdbConfig;
+		if(!mdbConfig.parse) {
+			this.docDecoder=new DocDecoder(mdbConfig,!"update".equals(mdbConfig.writeMode));
+			this.rawCollection=mdbConfig.defaultCollection.withDocumentClass(RawBsonDocument.class);
+		}
+		
+		if(null==mdbConfig.batchSize || 1>=mdbConfig.maxInFlightBatches) return;
+		
+		int lanes=mdbConfig.maxInFlightBatches;
+		this.batchWriters=new ExecutorService[lanes];
+		this.laneBatchList=new ArrayList<DocBatch>(lanes);
+		this.laneChains=new MapperChain[lanes];
+		this.inFlightPermits=new Semaphore(lanes);
+		for(int i=0;i<lanes;i++) {
+			String threadName="mongo-batch-writer-"+i;
+			this.batchWriters[i]=Executors.newSingleThreadExecutor(r->new Thread(r,threadName));
+			this.laneBatchList.add(new DocBatch());
+		}
 	}
 	
 	/**
@@ -50,14 +140,21 @@ public class MdbService {
 	 * @throws InterruptedException
 	 */
 	public boolean preSend() throws InterruptedException {
-		if(0==mdbConfig.preFailSinkSet.size())  return true;
+		if(null!=batchWriters) awaitInFlight();
+		if(0==mdbConfig.preFailSinkSet.size())  return resetLanes();
 		for(Object object:mdbConfig.preFailSinkSet){
-			CollectionMapper<Document> collectionMapper=(CollectionMapper<Document>)object;
-			collectionMapper.setMdbConfig(mdbConfig);
-			if(!collectionMapper.send()) return false;
+			if(object instanceof MapperChain) {
+				MapperChain mapperChain=(MapperChain)object;
+				mapperChain.setMdbConfig(mdbConfig);
+				if(!mapperChain.send()) return false;
+			}else{
+				CollectionMapper<?> collectionMapper=(CollectionMapper<?>)object;
+				collectionMapper.setMdbConfig(mdbConfig);
+				if(!collectionMapper.send()) return false;
+			}
 			mdbConfig.preFailSinkSet.remove(object);
 		}
-		return true;
+		return resetLanes();
 	}
 	
 	/**
@@ -108,10 +205,7 @@ public class MdbService {
 	 * @throws InterruptedException
 	 */
 	public Boolean parseAndBatchSend(String msg) throws InterruptedException {
-		if(null==msg) {
-			if(batchList.isEmpty()) return null;
-			return batchSend(batchList);
-		}
+		if(null==msg) return flushBatch();
 		
 		if((msg=msg.trim()).isEmpty()) return null;
 		
@@ -146,10 +240,7 @@ public class MdbService {
 			docMap.put(timeField, getGMTimestamp(value));
 		}
 		
-		batchList.add(new Document(docMap));
-		if(batchList.size()<mdbConfig.batchSize) return null;
-		
-		return batchSend(batchList);
+		return addToBatch(new Document(docMap));
 	}
 	
 	/**
@@ -159,21 +250,11 @@ public class MdbService {
 	 * @throws InterruptedException
 	 */
 	public Boolean noParseAndSingleSend(String msg) throws InterruptedException {
-		HashMap<String,Object> docMap=CommonUtil.jsonStrToJava(msg, HashMap.class);
-		if(null==docMap || docMap.isEmpty()) return null;
-		
-		if(null!=mdbConfig.idField){
-			String docIdVal=null;
-			if(!(docIdVal=docMap.getOrDefault(mdbConfig.idField, "").toString().trim()).isEmpty()) docMap.put("_id", docIdVal);
-		}
+		RawBsonDocument doc=docDecoder.decode(msg);
+		if(null==doc) return null;
 		
-		for(String timeField:mdbConfig.timeFieldSet){
-			Object value=docMap.get(timeField);
-			if(null==value) continue;
-			docMap.put(timeField, getGMTimestamp(value));
-		}
-		
-		return singleSend(new Document(docMap));
+		CollectionWrapper<RawBsonDocument> collectionWrapper=getCollectionWrapper(docDecoder.dbName,docDecoder.tabName,rawCollection,RawBsonDocument.class);
+		return singleSend(collectionWrapper.collection,getWriteModel(doc,docDecoder.docId));
 	}
 	
 	/**
@@ -183,30 +264,166 @@ public class MdbService {
 	 * @throws InterruptedException
 	 */
 	public Boolean noParseAndBatchSend(String msg) throws InterruptedException {
-		if(null==msg) {
-			if(batchList.isEmpty()) return null;
-			return batchSend(batchList);
-		}
+		if(null==msg) return flushBatch();
 		
 		if((msg=msg.trim()).isEmpty()) return null;
-		HashMap<String,Object> docMap=CommonUtil.jsonStrToJava(msg, HashMap.class);
-		if(null==docMap || docMap.isEmpty()) return null;
+		RawBsonDocument doc=docDecoder.decode(msg);
+		if(null==doc) return null;
 		
-		if(null!=mdbConfig.idField){
-			String docIdVal=null;
-			if(!(docIdVal=docMap.getOrDefault(mdbConfig.idField, "").toString().trim()).isEmpty()) docMap.put("_id", docIdVal);
+		CollectionWrapper<RawBsonDocument> collectionWrapper=getCollectionWrapper(docDecoder.dbName,docDecoder.tabName,rawCollection,RawBsonDocument.class);
+		return addToBatch(collectionWrapper,getWriteModel(doc,docDecoder.docId),docDecoder.docId);
+	}
+	
+	/**
+	 * 添加文档到批次,批次已满时发送
+	 * 多通道写出时按_id哈希选择通道(无_id的文档轮询选择),同一_id的文档总是由同一个线程按序写出;
+	 * 存在失败的通道批次时交出所有通道未满的批次(失败通道的批次按序暂存)并返回false
+	 * @param doc 文档对象
+	 * @return 发送结果(null:未发送,true:发送成功,false:发送失败)
+	 * @throws InterruptedException
+	 */
+	private Boolean addToBatch(Document doc) throws InterruptedException {
+		CollectionWrapper<Document> collectionWrapper=getCollectionWrapper(doc);
+		return addToBatch(collectionWrapper,getWriteModel(doc),doc.get("_id"));
+	}
+	
+	/**
+	 * 添加文档写模型到批次,批次已满时发送
+	 * @param collectionWrapper 集合表包装器
+	 * @param model 写模型
+	 * @param docId 文档ID
+	 * @return 发送结果(null:未发送,true:发送成功,false:发送失败)
+	 * @throws InterruptedException
+	 */
+	private synchronized <E> Boolean addToBatch(CollectionWrapper<E> collectionWrapper,WriteModel<E> model,Object docId) throws InterruptedException {
+		if(null==batchWriters) {
+			docBatch.add(collectionWrapper, model);
+			if(docBatch.size<mdbConfig.batchSize) return null;
+			return batchSend(docBatch);
 		}
 		
-		for(String timeField:mdbConfig.timeFieldSet){
-			Object value=docMap.get(timeField);
-			if(null==value) continue;
-			docMap.put(timeField, getGMTimestamp(value));
-		}
+		int lane=null==docId?(laneCursor=(laneCursor+1)%batchWriters.length):(docId.hashCode()&Integer.MAX_VALUE)%batchWriters.length;
+		DocBatch laneBatch=laneBatchList.get(lane);
+		laneBatch.add(collectionWrapper, model);
+		Boolean result=laneBatch.size<mdbConfig.batchSize?null:handOff(lane);
+		if(!batchFailed) return result;
 		
-		batchList.add(new Document(docMap));
-		if(batchList.size()<mdbConfig.batchSize) return null;
+		flushBatch();
+		return false;
+	}
+	
+	/**
+	 * 发送未满的批次(等待上游数据超时时调用)
+	 * @return 发送结果(null:未发送,true:发送成功,false:发送失败)
+	 * @throws InterruptedException
+	 */
+	private synchronized Boolean flushBatch() throws InterruptedException {
+		if(null==batchWriters) {
+			if(docBatch.isEmpty()) return null;
+			return batchSend(docBatch);
+		}
 		
-		return batchSend(batchList);
+		Boolean result=batchFailed?false:null;
+		for(int lane=0;lane<batchWriters.length;lane++) {
+			if(laneBatchList.get(lane).isEmpty()) continue;
+			result=handOff(lane);
+		}
+		return result;
+	}
+	
+	/**
+	 * 将通道批次交给该通道的写出线程异步发送
+	 * 在途批次达到maxInFlightBatches时阻塞等待
+	 * @param lane 通道序号
+	 * @return 是否发送成功(false:此前存在重试后仍失败的批次)
+	 * @throws InterruptedException
+	 */
+	private boolean handOff(int lane) throws InterruptedException {
+		DocBatch sendBatch=laneBatchList.set(lane, new DocBatch());
+		inFlightPermits.acquire();
+		try{
+			batchWriters[lane].execute(()->{
+				try{
+					laneSend(lane,sendBatch);
+				}finally{
+					inFlightPermits.release();
+				}
+			});
+		}catch(RejectedExecutionException e) {
+			inFlightPermits.release();
+			laneSend(lane,sendBatch);
+		}
+		return !batchFailed;
+	}
+	
+	/**
+	 * 发送通道批次
+	 * 通道此前已有批次失败时,本批次不再写出而是按序追加到该通道的失败映射器链之后;
+	 * 本批次失败时,失败的映射器及本批次余下的映射器均追加到新的失败映射器链中
+	 * @param lane 通道序号
+	 * @param sendBatch 通道批次
+	 */
+	private void laneSend(int lane,DocBatch sendBatch) {
+		MapperChain mapperChain=laneChains[lane];
+		for(CollectionMapper<?> collectionMapper:sendBatch.getMappers()) {
+			if(null==mapperChain) {
+				collectionMapper.setMdbConfig(mdbConfig);
+				try{
+					if(collectionMapper.send()) continue;
+				}catch(InterruptedException e) {
+					log.warn("batch writer is interrupted,{} documents are not sent...",sendBatch.size);
+				}
+				
+				mapperChain=laneChains[lane]=new MapperChain();
+				batchFailed=true;
+				synchronized(mdbConfig.preFailSinkSet) {
+					mdbConfig.preFailSinkSet.add(mapperChain);
+				}
+			}
+			mapperChain.add(collectionMapper);
+		}
+		sendBatch.clear();
+	}
+	
+	/**
+	 * 重置各通道的失败状态(失败映射器链均已重发成功后调用)
+	 * @return true
+	 */
+	private boolean resetLanes() {
+		if(null==batchWriters) return true;
+		for(int lane=0;lane<laneChains.length;lane++) laneChains[lane]=null;
+		batchFailed=false;
+		return true;
+	}
+	
+	/**
+	 * 等待在途批次发送完成
+	 */
+	private void awaitInFlight() {
+		long maxWaitMills=mdbConfig.failMaxWaitMills*mdbConfig.maxRetryTimes+30000L;
+		try{
+			if(inFlightPermits.tryAcquire(batchWriters.length, maxWaitMills, TimeUnit.MILLISECONDS)) {
+				inFlightPermits.release(batchWriters.length);
+			}else{
+				log.warn("wait in-flight batches timeout...");
+			}
+		}catch(InterruptedException e) {
+			log.warn("interrupted while waiting in-flight batches...");
+		}
+	}
+	
+	/**
+	 * 交出各通道未满的批次,等待在途批次发送完成并停止写出线程
+	 */
+	public void stop() {
+		if(null==batchWriters) return;
+		try{
+			flushBatch();
+		}catch(InterruptedException e) {
+			log.warn("interrupted while flushing lane batches...");
+		}
+		awaitInFlight();
+		for(ExecutorService batchWriter:batchWriters) batchWriter.shutdownNow();
 	}
 	
 	/**
@@ -216,106 +433,98 @@ public class MdbService {
 	 * @throws InterruptedException 
 	 */
 	private boolean singleSend(Document doc) throws InterruptedException {
-		MongoCollection<Document> collection=getCollection(doc);
-		boolean loop=false;
-		int times=0;
-		do{
-			try{
-				collection.insertOne(doc);
-				loop=false;
-			}catch(Exception e) {
-				times++;
-				loop=true;
-				Thread.sleep(mdbConfig.failMaxWaitMills);
-				log.error("send occur excepton: ",e);
-			}
-		}while(loop && times<mdbConfig.maxRetryTimes);
+		CollectionWrapper<Document> collectionWrapper=getCollectionWrapper(doc);
+		return singleSend(collectionWrapper.collection,getWriteModel(doc));
+	}
+	
+	/**
+	 * 发送单个文档写模型到MDB
+	 * @param collection 集合表
+	 * @param model 写模型
+	 * @return 是否发送成功
+	 * @throws InterruptedException 
+	 */
+	private <E> boolean singleSend(MongoCollection<E> collection,WriteModel<E> model) throws InterruptedException {
+		CollectionMapper<E> collectionMapper=new CollectionMapper<E>(model,collection);
+		collectionMapper.setMdbConfig(mdbConfig);
+		if(collectionMapper.send()) return true;
 		
-		if(loop) mdbConfig.preFailSinkSet.add(new CollectionMapper<Document>(doc,collection));
-		return !loop;
+		synchronized(mdbConfig.preFailSinkSet) {
+			mdbConfig.preFailSinkSet.add(collectionMapper);
+		}
+		return false;
 	}
 	
 	/**
-	 * 按集合表命名空间批量发送文档到MDB
+	 * 批量发送文档到MDB
+	 * 每个集合表的文档以一次无序批量写发送,部分文档失败时仅重试失败的文档
+	 * @param docBatch 文档批次
 	 * @return 是否发送成功
 	 * @throws InterruptedException 
 	 */
-	private boolean batchSend(ArrayList<Document> batchDocList) throws InterruptedException {
-		HashMap<CollectionWrapper<Document>,ArrayList<Document>> collMap=getBatchCollectionMap(batchDocList);
-		if(null==collMap || collMap.isEmpty()) return false;
+	private boolean batchSend(DocBatch docBatch) throws InterruptedException {
+		if(docBatch.isEmpty()) return false;
 		boolean finalSuccess=true;
 		
-		Set<Entry<CollectionWrapper<Document>, ArrayList<Document>>> entrys=collMap.entrySet();
-		for(Entry<CollectionWrapper<Document>, ArrayList<Document>> entry:entrys) {
-			MongoCollection<Document> collection=entry.getKey().collection;
-			ArrayList<Document> docList=entry.getValue();
-			boolean loop=false;
-			int times=0;
-			do{
-				try{
-					collection.insertMany(docList);
-					loop=false;
-				}catch(Exception e) {
-					times++;
-					loop=true;
-					Thread.sleep(mdbConfig.failMaxWaitMills);
-					log.error("send occur excepton: ",e);
-				}
-			}while(loop && times<mdbConfig.maxRetryTimes);
-			if(loop) {
-				finalSuccess=false;
-				mdbConfig.preFailSinkSet.add(new CollectionMapper<Document>(docList,collection));
+		for(CollectionMapper<?> collectionMapper:docBatch.getMappers()) {
+			collectionMapper.setMdbConfig(mdbConfig);
+			if(collectionMapper.send()) continue;
+			
+			finalSuccess=false;
+			synchronized(mdbConfig.preFailSinkSet) {
+				mdbConfig.preFailSinkSet.add(collectionMapper);
 			}
 		}
 		
-		batchDocList.clear();
+		docBatch.clear();
 		return finalSuccess;
 	}
 	
 	/**
-	 * 获取写出集合表字典
-	 * @param docList 写出文档列表
-	 * @return 集合表字典
+	 * 获取文档写模型
+	 * @param doc 写出文档
+	 * @return 写模型
 	 */
-	private HashMap<CollectionWrapper<Document>,ArrayList<Document>> getBatchCollectionMap(ArrayList<Document> docList) {
-		if(null==docList) return null;
-		
-		HashMap<CollectionWrapper<Document>,ArrayList<Document>> collMap=
-				new HashMap<CollectionWrapper<Document>,ArrayList<Document>>();
-		
-		for(Document doc:docList) {
-			CollectionWrapper<Document> collectionWrapper=getCollectionWrapper(doc);
-			ArrayList<Document> tmpList=collMap.get(collectionWrapper);
-			if(null==tmpList) collMap.put(collectionWrapper, tmpList=new ArrayList<Document>());
-			tmpList.add(doc);
+	private WriteModel<Document> getWriteModel(Document doc) {
+		Object docId=doc.get("_id");
+		Document setDoc=null;
+		if(null!=docId && "update".equals(mdbConfig.writeMode)) {
+			setDoc=new Document(doc);
+			setDoc.remove("_id");
+			if(setDoc.isEmpty()) setDoc=null;
 		}
-		
-		return collMap;
+		return getWriteModel(doc,docId,setDoc);
 	}
 	
 	/**
-	 * 获取写出集合表
+	 * 获取BSON文档写模型(writeMode=update时文档解码时不含_id)
 	 * @param doc 写出文档
-	 * @return 集合表
+	 * @param docId 文档ID
+	 * @return 写模型
 	 */
-	private MongoCollection<Document> getCollection(Document doc) {
-		MongoDatabase database=mdbConfig.defaultDatabase;
-		if(null!=mdbConfig.dbField) {
-			String dbNameStr=(String)doc.remove(mdbConfig.dbField);
-			if(!isEmpty(dbNameStr)) {
-				database=mdbConfig.mongoClient.getDatabase(dbNameStr.trim());
-			}
-		}
+	private WriteModel<RawBsonDocument> getWriteModel(RawBsonDocument doc,BsonValue docId) {
+		if(null==docId || !"update".equals(mdbConfig.writeMode)) return getWriteModel(doc,docId,null);
+		if(!doc.isEmpty()) return getWriteModel(doc,docId,doc);
+		return getWriteModel(new RawBsonDocument(new BsonDocument("_id",docId),BSON_DOCUMENT_CODEC),docId,null);
+	}
+	
+	/**
+	 * 获取写模型
+	 * 文档无_id或writeMode=insert时为插入,writeMode=replace时按_id替换(不存在则插入),writeMode=update时按_id更新字段(不存在则插入)
+	 * @param doc 写出文档
+	 * @param docId 文档ID
+	 * @param setDoc 更新字段(不含_id,为null时插入)
+	 * @return 写模型
+	 */
+	private <E> WriteModel<E> getWriteModel(E doc,Object docId,Bson setDoc) {
+		if(null==docId || "insert".equals(mdbConfig.writeMode)) return new InsertOneModel<E>(doc);
 		
-		MongoCollection<Document> collection=mdbConfig.defaultCollection;
-		if(null!=mdbConfig.tabField) {
-			String tabNameStr=(String)doc.remove(mdbConfig.tabField);
-			if(!isEmpty(tabNameStr)) {
-				collection=database.getCollection(tabNameStr.trim(),Document.class);
-			}
+		if("update".equals(mdbConfig.writeMode)) {
+			if(null==setDoc) return new InsertOneModel<E>(doc);
+			return new UpdateOneModel<E>(Filters.eq("_id", docId),new Document("$set",setDoc),UPSERT_UPDATE);
 		}
 		
-		return collection;
+		return new ReplaceOneModel<E>(Filters.eq("_id", docId),doc,UPSERT_REPLACE);
 	}
 	
 	/**
@@ -324,27 +533,35 @@ public class MdbService {
 	 * @return 集合表包装器
 	 */
 	private CollectionWrapper<Document> getCollectionWrapper(Document doc) {
+		String dbNameStr=null==mdbConfig.dbField?null:(String)doc.remove(mdbConfig.dbField);
+		String tabNameStr=null==mdbConfig.tabField?null:(String)doc.remove(mdbConfig.tabField);
+		return getCollectionWrapper(dbNameStr,tabNameStr,mdbConfig.defaultCollection,Document.class);
+	}
+	
+	/**
+	 * 获取写出集合表包装器
+	 * @param dbNameStr 库名(为空时取默认库)
+	 * @param tabNameStr 表名(为空时取默认表)
+	 * @param defaultCollection 默认集合表
+	 * @param documentClass 文档类型
+	 * @return 集合表包装器
+	 */
+	private <E> CollectionWrapper<E> getCollectionWrapper(String dbNameStr,String tabNameStr,MongoCollection<E> defaultCollection,Class<E> documentClass) {
 		String dbName=mdbConfig.defaultDB;
 		MongoDatabase database=mdbConfig.defaultDatabase;
-		if(null!=mdbConfig.dbField) {
-			String dbNameStr=(String)doc.remove(mdbConfig.dbField);
-			if(!isEmpty(dbNameStr)) {
-				dbName=dbNameStr.trim();
-				database=mdbConfig.mongoClient.getDatabase(dbName);
-			}
+		if(!isEmpty(dbNameStr)) {
+			dbName=dbNameStr.trim();
+			database=mdbConfig.mongoClient.getDatabase(dbName);
 		}
 		
 		String tabName=mdbConfig.defaultTab;
-		MongoCollection<Document> collection=mdbConfig.defaultCollection;
-		if(null!=mdbConfig.tabField) {
-			String tabNameStr=(String)doc.remove(mdbConfig.tabField);
-			if(!isEmpty(tabNameStr)) {
-				tabName=tabNameStr.trim();
-				collection=database.getCollection(tabName,Document.class);
-			}
+		MongoCollection<E> collection=defaultCollection;
+		if(!isEmpty(tabNameStr)) {
+			tabName=tabNameStr.trim();
+			collection=database.getCollection(tabName,documentClass);
 		}
 		
-		return new CollectionWrapper<Document>(dbName,tabName,collection);
+		return new CollectionWrapper<E>(dbName,tabName,collection);
 	}
 	
 	/**
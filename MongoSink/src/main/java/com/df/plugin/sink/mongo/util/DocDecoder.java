@@ -0,0 +1,262 @@
+package com.df.plugin.sink.mongo.util;
+
+import java.sql.Timestamp;
+import java.util.Set;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonValueCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.json.JsonReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.df.plugin.sink.mongo.config.MdbConfig;
+import com.github.lixiang2114.flow.util.CommonUtil;
+
+/**
+ * @author Lixiang
+ * @description 文档解码器
+ * 使用驱动的JsonReader将Json记录一次性解码为BSON字节(RawBsonDocument),解码过程中同时转换时间字段、
+ * 提取库名字段和表名字段(不写入文档)及文档ID,无需经过中间字典,写入时驱动也无需再次编码
+ * 非线程安全,仅供读取线程使用
+ */
+public class DocDecoder {
+	/**
+	 * 处理记录中的ID字段
+	 */
+	private String idField;
+
+	/**
+	 * 处理记录中的库名字段
+	 */
+	private String dbField;
+
+	/**
+	 * 处理记录中的表名字段
+	 */
+	private String tabField;
+
+	/**
+	 * 是否将_id写入文档
+	 */
+	private boolean includeId;
+
+	/**
+	 * GMT时差毫秒数
+	 */
+	private long timeZoneMillis;
+
+	/**
+	 * 时间转换字段集
+	 */
+	private Set<String> timeFieldSet;
+
+	/**
+	 * BSON字节缓冲区(在文档之间复用)
+	 */
+	private BasicOutputBuffer buffer=new BasicOutputBuffer(1024);
+
+	/**
+	 * 最近一次解码的库名
+	 */
+	public String dbName;
+
+	/**
+	 * 最近一次解码的表名
+	 */
+	public String tabName;
+
+	/**
+	 * 最近一次解码的文档ID
+	 */
+	public BsonValue docId;
+
+	/**
+	 * 少见类型字段值编解码器
+	 */
+	private static final BsonValueCodec BSON_VALUE_CODEC=new BsonValueCodec();
+
+	/**
+	 * 日志工具
+	 */
+	private static final Logger log=LoggerFactory.getLogger(DocDecoder.class);
+
+	/**
+	 * @param mdbConfig MongoDB配置
+	 * @param includeId 是否将_id写入文档(按_id更新时$set中不能包含_id)
+	 */
+	public DocDecoder(MdbConfig mdbConfig,boolean includeId) {
+		this.idField=mdbConfig.idField;
+		this.dbField=mdbConfig.dbField;
+		this.tabField=mdbConfig.tabField;
+		this.timeFieldSet=mdbConfig.timeFieldSet;
+		this.timeZoneMillis=mdbConfig.timeZoneMillis;
+		this.includeId=includeId;
+	}
+
+	/**
+	 * 解码Json记录
+	 * idField字段值非空时作为字符串_id,否则保留记录中的_id;_id写在文档末尾(插入时服务端将其移至首位)
+	 * @param json Json记录
+	 * @return BSON文档,记录为空字典或无法解析时返回null
+	 */
+	public RawBsonDocument decode(String json) {
+		dbName=null;
+		tabName=null;
+		docId=null;
+		buffer.truncateToPosition(0);
+
+		JsonReader reader=new JsonReader(json);
+		BsonBinaryWriter writer=new BsonBinaryWriter(buffer);
+		try{
+			int fieldCount=0;
+			String idValue=null;
+			reader.readStartDocument();
+			writer.writeStartDocument();
+
+			BsonType bsonType;
+			for(;BsonType.END_OF_DOCUMENT!=(bsonType=reader.readBsonType());fieldCount++) {
+				String name=reader.readName();
+				if(name.equals(dbField)) {
+					dbName=readString(reader,bsonType);
+				}else if(name.equals(tabField)) {
+					tabName=readString(reader,bsonType);
+				}else if("_id".equals(name)) {
+					docId=BSON_VALUE_CODEC.decode(reader, DecoderContext.builder().build());
+				}else if(timeFieldSet.contains(name)) {
+					writer.writeName(name);
+					writeTime(reader,writer,bsonType);
+				}else if(name.equals(idField)) {
+					writer.writeName(name);
+					idValue=pipeValue(reader,writer,bsonType);
+				}else{
+					writer.writeName(name);
+					pipeValue(reader,writer,bsonType);
+				}
+			}
+
+			if(0==fieldCount) return null;
+			if(null!=idValue && !(idValue=idValue.trim()).isEmpty()) docId=new BsonString(idValue);
+			if(includeId && null!=docId) {
+				writer.writeName("_id");
+				BSON_VALUE_CODEC.encode(writer, docId, EncoderContext.builder().build());
+			}
+
+			writer.writeEndDocument();
+			return new RawBsonDocument(buffer.toByteArray());
+		}catch(RuntimeException e) {
+			log.warn("decode json record occur error: {}",e.getMessage());
+			return null;
+		}finally{
+			reader.close();
+			writer.close();
+		}
+	}
+
+	/**
+	 * 写出时间字段(与解析模式的转换方式一致:数值为毫秒时间戳,字符串为整数或yyyy-MM-dd HH:mm:ss[.fffffffff],均加上GMT时差)
+	 * @param reader Json读取器
+	 * @param writer BSON写入器
+	 * @param bsonType 字段类型
+	 */
+	private void writeTime(JsonReader reader,BsonBinaryWriter writer,BsonType bsonType) {
+		switch(bsonType) {
+			case DATE_TIME:
+				writer.writeDateTime(reader.readDateTime()+timeZoneMillis);
+				return;
+			case INT32:
+				writer.writeDateTime(reader.readInt32()+timeZoneMillis);
+				return;
+			case INT64:
+				writer.writeDateTime(reader.readInt64()+timeZoneMillis);
+				return;
+			case DOUBLE:
+				writer.writeDateTime((long)reader.readDouble()+timeZoneMillis);
+				return;
+			case STRING:
+				String str=reader.readString().trim();
+				if(str.isEmpty()) break;
+				long mills=CommonUtil.isInteger(str)?Long.parseLong(str):Timestamp.valueOf(str).getTime();
+				writer.writeDateTime(mills+timeZoneMillis);
+				return;
+			default:
+				reader.skipValue();
+		}
+		writer.writeNull();
+	}
+
+	/**
+	 * 读取字符串字段值
+	 * @param reader Json读取器
+	 * @param bsonType 字段类型
+	 * @return 字符串值,非字符串类型返回null
+	 */
+	private static String readString(JsonReader reader,BsonType bsonType) {
+		if(BsonType.STRING==bsonType) return reader.readString();
+		reader.skipValue();
+		return null;
+	}
+
+	/**
+	 * 将字段值从Json读取器复制到BSON写入器
+	 * @param reader Json读取器
+	 * @param writer BSON写入器
+	 * @param bsonType 字段类型
+	 * @return 标量字段值的字符串形式,文档和数组返回null
+	 */
+	private static String pipeValue(JsonReader reader,BsonBinaryWriter writer,BsonType bsonType) {
+		switch(bsonType) {
+			case DOCUMENT:
+				reader.readStartDocument();
+				writer.writeStartDocument();
+				while(BsonType.END_OF_DOCUMENT!=(bsonType=reader.readBsonType())) {
+					writer.writeName(reader.readName());
+					pipeValue(reader,writer,bsonType);
+				}
+				reader.readEndDocument();
+				writer.writeEndDocument();
+				return null;
+			case ARRAY:
+				reader.readStartArray();
+				writer.writeStartArray();
+				while(BsonType.END_OF_DOCUMENT!=(bsonType=reader.readBsonType())) pipeValue(reader,writer,bsonType);
+				reader.readEndArray();
+				writer.writeEndArray();
+				return null;
+			case STRING:
+				String str=reader.readString();
+				writer.writeString(str);
+				return str;
+			case INT32:
+				int intValue=reader.readInt32();
+				writer.writeInt32(intValue);
+				return String.valueOf(intValue);
+			case INT64:
+				long longValue=reader.readInt64();
+				writer.writeInt64(longValue);
+				return String.valueOf(longValue);
+			case DOUBLE:
+				double doubleValue=reader.readDouble();
+				writer.writeDouble(doubleValue);
+				return String.valueOf(doubleValue);
+			case BOOLEAN:
+				boolean boolValue=reader.readBoolean();
+				writer.writeBoolean(boolValue);
+				return String.valueOf(boolValue);
+			case NULL:
+				reader.readNull();
+				writer.writeNull();
+				return null;
+			default:
+				BsonValue value=BSON_VALUE_CODEC.decode(reader, DecoderContext.builder().build());
+				BSON_VALUE_CODEC.encode(writer, value, EncoderContext.builder().build());
+				return value.isObjectId()?value.asObjectId().getValue().toHexString():null;
+		}
+	}
+}
@@ -7,15 +7,22 @@ import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.df.plugin.source.mongo.dto.IdPartition;
 import com.github.lixiang2114.flow.comps.Flow;
 import com.github.lixiang2114.flow.util.CommonUtil;
 import com.github.lixiang2114.flow.util.PropertiesReader;
@@ -56,6 +63,21 @@ public class MdbConfig {
 	 */
 	public Boolean realtime;
 	
+	/**
+	 * 是否以变更流(Change Stream)方式实时读取(realtime=changeStream)
+	 */
+	public boolean changeStream;
+	
+	/**
+	 * 变更流恢复令牌(检查点)
+	 */
+	public volatile BsonDocument resumeToken;
+	
+	/**
+	 * 变更流输出文档中存放操作类型的字段名(为null时不输出操作类型,也不输出删除事件)
+	 */
+	public String opTypeField;
+	
 	/**
 	 * Mdb服务器密码
 	 */
@@ -88,6 +110,29 @@ public class MdbConfig {
 	 */
 	public Integer batchSize;
 	
+	/**
+	 * 分页模式
+	 * skip: 按$skip/$limit分页
+	 * keyset: 按_id键集分页($match:{_id:{$gt:lastId}})
+	 * cursor: 按_id排序的单个长游标读取,游标失效时从lastId重新打开
+	 */
+	public String pageMode;
+	
+	/**
+	 * keyset/cursor模式下的并行分区数量
+	 */
+	public Integer partitions;
+	
+	/**
+	 * keyset模式下的分区边界表(分区数量-1个_id值,为null时需采样计算)
+	 */
+	public ArrayList<Object> partitionBounds;
+	
+	/**
+	 * keyset模式下的分区游标表(不分区时仅有一个游标)
+	 */
+	public IdPartition[] idPartitions;
+	
 	/**
 	 * MongoDB客户端
 	 */
@@ -118,6 +163,11 @@ public class MdbConfig {
      */
 	private static final Pattern NUMBER_REGEX=Pattern.compile("^[0-9]+$");
 	
+	/**
+	 * _id检查点JSON格式
+	 */
+	private static final JsonWriterSettings ID_JSON_SETTINGS=JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+	
 	/**
 	 * 过滤管道表
 	 */
@@ -138,6 +188,11 @@ public class MdbConfig {
      */
 	private static final Pattern IP_REGEX=Pattern.compile("^\\d+\\.\\d+\\.\\d+\\.\\d+$");
 	
+	/**
+	 * 键集分页不支持的管道阶段(改变文档顺序、合并或拆分文档、替换文档根)
+	 */
+	private static final HashSet<String> UNKEYED_STAGES=new HashSet<String>(Arrays.asList("$sort","$sortByCount","$group","$bucket","$bucketAuto","$replaceRoot","$replaceWith","$unwind"));
+	
 	public MdbConfig(){}
 	
 	public MdbConfig(Flow flow) {
@@ -170,8 +225,32 @@ public class MdbConfig {
 		String outFormatStr=config.getProperty("outFormat","").trim();
 		this.outFormat=outFormatStr.isEmpty()?"qstr":outFormatStr;
 		
+		String pageModeStr=config.getProperty("pageMode", "").trim();
+		this.pageMode=pageModeStr.isEmpty()?"skip":pageModeStr;
+		
+		String partitionsStr=config.getProperty("partitions", "").trim();
+		this.partitions=partitionsStr.isEmpty()?1:Integer.parseInt(partitionsStr);
+		
+		String partitionBoundsStr=config.getProperty("partitionBounds", "").trim();
+		if(!partitionBoundsStr.isEmpty()) partitionBounds=(ArrayList<Object>)parseIdValue(partitionBoundsStr);
+		
+		if(1==partitions) {
+			initIdPartitions(new ArrayList<Object>(),true);
+		}else if(null!=partitionBounds && partitionBounds.size()==partitions-1) {
+			initIdPartitions(partitionBounds,true);
+		}
+		
 		String realtimeStr=config.getProperty("realtime", "").trim();
-		this.realtime=realtimeStr.isEmpty()?true:Boolean.parseBoolean(realtimeStr);
+		this.changeStream="changeStream".equals(realtimeStr);
+		this.realtime=realtimeStr.isEmpty() || changeStream?true:Boolean.parseBoolean(realtimeStr);
+		
+		String resumeTokenStr=config.getProperty("resumeToken", "").trim();
+		this.resumeToken=resumeTokenStr.isEmpty()?null:BsonDocument.parse(resumeTokenStr);
+		
+		String opTypeFieldStr=config.getProperty("opTypeField", "").trim();
+		this.opTypeField=opTypeFieldStr.isEmpty()?null:opTypeFieldStr;
+		
+		if(!changeStream && ("keyset".equals(pageMode) || "cursor".equals(pageMode))) checkKeysetPipeLine();
 		
 		if(null==userName || null==passWord) {
 			mongoClient=new MongoClient(hostList,mongoClientOptions);
@@ -217,6 +296,31 @@ public class MdbConfig {
 		this.startIndex=startIndexNum.intValue();
 	}
 	
+	/**
+	 * 检查键集分页管道
+	 * 键集游标取自管道输出文档的_id,管道不能改变文档顺序、合并或拆分文档,也不能移除或改写_id
+	 */
+	private void checkKeysetPipeLine() {
+		for(BasicDBObject stage:pipeLine.subList(0, pipeLine.size()-2)) {
+			for(String stageName:stage.keySet()) {
+				Object stageValue=stage.get(stageName);
+				boolean unkeyed=UNKEYED_STAGES.contains(stageName);
+				if("$project".equals(stageName) && stageValue instanceof BasicDBObject) {
+					Object idValue=((BasicDBObject)stageValue).get("_id");
+					unkeyed=null!=idValue && !Boolean.TRUE.equals(idValue) && !(idValue instanceof Number && 0!=((Number)idValue).doubleValue());
+				}else if(("$addFields".equals(stageName) || "$set".equals(stageName)) && stageValue instanceof BasicDBObject) {
+					unkeyed=((BasicDBObject)stageValue).containsField("_id");
+				}else if("$unset".equals(stageName)) {
+					unkeyed="_id".equals(stageValue) || (stageValue instanceof List && ((List<?>)stageValue).contains("_id"));
+				}
+				
+				if(!unkeyed) continue;
+				log.error("pageMode "+pageMode+" does not support pipeline stage that reorders documents or changes _id: "+stage.toJson());
+				throw new RuntimeException("pageMode "+pageMode+" does not support pipeline stage that reorders documents or changes _id: "+stage.toJson());
+			}
+		}
+	}
+	
 	/**
 	 * 初始化主机地址列表
 	 */
@@ -303,6 +407,19 @@ public class MdbConfig {
 	public void refreshCheckPoint() throws IOException{
 		OutputStream fos=null;
 		config.setProperty("selectSQL",CommonUtil.javaToJsonStr(pipeLine));
+		if(null!=idPartitions) {
+			StringBuilder finishedPartitions=new StringBuilder();
+			for(IdPartition idPartition:idPartitions) {
+				Object lastId=idPartition.lastId;
+				if(null!=lastId) config.setProperty(idPartition.checkpointKey,formatIdValue(lastId));
+				if(idPartition.finished) finishedPartitions.append(idPartition.partitionId).append(',');
+			}
+			if(1<idPartitions.length) {
+				config.setProperty("partitionBounds",formatIdValue(partitionBounds));
+				config.setProperty("finishedPartitions",0==finishedPartitions.length()?"":finishedPartitions.substring(0, finishedPartitions.length()-1));
+			}
+		}
+		if(null!=resumeToken) config.setProperty("resumeToken",resumeToken.toJson());
 		try{
 			fos=new FileOutputStream(new File(sourcePath,"source.properties"));
 			log.info("reflesh checkpoint...");
@@ -312,6 +429,48 @@ public class MdbConfig {
 		}
 	}
 	
+	/**
+	 * 初始化分区游标表
+	 * 不分区时检查点属性名为lastId,分区时为lastId.分区ID,已读取完毕的分区记录在finishedPartitions中
+	 * @param bounds 分区边界表(升序)
+	 * @param restore 是否从检查点恢复各分区的读取位置(分区边界重新计算时不恢复)
+	 */
+	public void initIdPartitions(ArrayList<Object> bounds,boolean restore) {
+		this.partitionBounds=bounds;
+		HashSet<String> finishedSet=new HashSet<String>(Arrays.asList(COMMA_REGEX.split(config.getProperty("finishedPartitions","").trim())));
+		IdPartition[] idPartitions=new IdPartition[bounds.size()+1];
+		for(int i=0;i<idPartitions.length;i++) {
+			Object lowerId=0==i?null:bounds.get(i-1);
+			Object upperId=bounds.size()==i?null:bounds.get(i);
+			idPartitions[i]=new IdPartition(i,lowerId,upperId,1==idPartitions.length?"lastId":"lastId."+i);
+			if(!restore) continue;
+			
+			String lastIdStr=config.getProperty(idPartitions[i].checkpointKey,"").trim();
+			if(!lastIdStr.isEmpty()) idPartitions[i].lastId=parseIdValue(lastIdStr);
+			idPartitions[i].finished=1<idPartitions.length && finishedSet.contains(String.valueOf(i));
+		}
+		this.idPartitions=idPartitions;
+	}
+	
+	/**
+	 * 解析检查点中的_id值(或_id值列表)
+	 * @param idStr _id值的扩展JSON字串(如:{"$oid":"..."})
+	 * @return _id值
+	 */
+	private static Object parseIdValue(String idStr) {
+		return Document.parse("{\"_id\":"+idStr+"}").get("_id");
+	}
+	
+	/**
+	 * 格式化_id值为扩展JSON字串(保留ObjectId、Long等类型信息)
+	 * @param idValue _id值
+	 * @return _id值的扩展JSON字串
+	 */
+	private static String formatIdValue(Object idValue) {
+		String json=new Document("_id",idValue).toJson(ID_JSON_SETTINGS);
+		return json.substring(json.indexOf(':')+1, json.lastIndexOf('}')).trim();
+	}
+	
 	/**
 	 * 获取字段值
 	 * @param key 键
@@ -384,11 +543,16 @@ public class MdbConfig {
 	public String collectRealtimeParams() {
 		HashMap<String,Object> map=new HashMap<String,Object>();
 		map.put("hostList", hostList);
-		map.put("realtime", realtime);
+		map.put("realtime", changeStream?"changeStream":realtime);
+		map.put("resumeToken", resumeToken);
+		map.put("opTypeField", opTypeField);
 		map.put("selectSQL", pipeLine);
 		map.put("batchSize", batchSize);
 		map.put("passWord", passWord);
 		map.put("startIndex", startIndex);
+		map.put("pageMode", pageMode);
+		map.put("partitions", partitions);
+		if(null!=idPartitions) for(IdPartition idPartition:idPartitions) map.put(idPartition.checkpointKey, idPartition.finished?"finished":idPartition.lastId);
 		map.put("userName", userName);
 		map.put("outFormat", outFormat);
 		map.put("sourcePath", sourcePath);
@@ -0,0 +1,45 @@
+package com.df.plugin.source.mongo.dto;
+
+/**
+ * @author Lixiang
+ * @description _id分区游标(每个分区按键集分页独立读取并维护检查点)
+ * 分区区间为[lowerId,upperId),边界为null时表示无界
+ */
+public class IdPartition {
+	/**
+	 * 分区ID
+	 */
+	public int partitionId;
+	
+	/**
+	 * 分区下界(包含)
+	 */
+	public Object lowerId;
+	
+	/**
+	 * 分区上界(不包含)
+	 */
+	public Object upperId;
+	
+	/**
+	 * 检查点属性名
+	 */
+	public String checkpointKey;
+	
+	/**
+	 * 最后一条已读文档的_id
+	 */
+	public volatile Object lastId;
+	
+	/**
+	 * 分区是否已读取完毕
+	 */
+	public volatile boolean finished;
+	
+	public IdPartition(int partitionId,Object lowerId,Object upperId,String checkpointKey) {
+		this.partitionId=partitionId;
+		this.lowerId=lowerId;
+		this.upperId=upperId;
+		this.checkpointKey=checkpointKey;
+	}
+}
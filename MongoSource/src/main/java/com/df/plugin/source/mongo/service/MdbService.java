@@ -2,18 +2,30 @@ package com.df.plugin.source.mongo.service;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.df.plugin.source.mongo.config.MdbConfig;
+import com.df.plugin.source.mongo.dto.IdPartition;
+import com.df.plugin.source.mongo.util.DocEncoder;
 import com.github.lixiang2114.flow.comps.Channel;
-import com.github.lixiang2114.flow.util.CommonUtil;
 import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.ChangeStreamIterable;
 import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
 
 /**
  * @author Lixiang
@@ -26,6 +38,26 @@ public class MdbService {
 	 */
 	private MdbConfig mdbConfig;
 	
+	/**
+	 * 以BSON字节读取文档的集合对象
+	 */
+	private MongoCollection<RawBsonDocument> rawCollection;
+	
+	/**
+	 * 文档编码器(每个读取线程一个实例)
+	 */
+	private ThreadLocal<DocEncoder> docEncoder;
+	
+	/**
+	 * BSON文档编解码器
+	 */
+	private static final BsonDocumentCodec BSON_DOCUMENT_CODEC=new BsonDocumentCodec();
+	
+	/**
+	 * 计算分区边界时每个分区的采样文档数量
+	 */
+	private static final int SAMPLES_PER_PARTITION=1000;
+	
 	/**
 	 * 日志工具
 	 */
@@ -35,6 +67,8 @@ public class MdbService {
 	
 	public MdbService(MdbConfig mdbConfig){
 		this.mdbConfig=mdbConfig;
+		this.rawCollection=mdbConfig.mongoCollection.withDocumentClass(RawBsonDocument.class);
+		this.docEncoder=ThreadLocal.withInitial(()->new DocEncoder(mdbConfig.outFormat));
 	}
 	
 	/**
@@ -51,53 +85,13 @@ public class MdbService {
 	 */
 	public Object startManualETLProcess(Channel<String> sourceToFilterChannel) throws Exception {
 		log.info("execute mongo source process...");
-		ArrayList<BasicDBObject> pipeList=mdbConfig.pipeLine;
-		MongoCollection<Document> collection=mdbConfig.mongoCollection;
 		try{
-			while(mdbConfig.flow.sourceStart){
-				int counter=0;
-				MongoCursor<Document> docList=collection.aggregate(pipeList).iterator();
-				for(;docList.hasNext();counter++) {
-					Document doc=docList.next();
-					doc.put("_id", doc.get("_id").toString());
-					switch(mdbConfig.outFormat) {
-						case "map":
-							sourceToFilterChannel.put(doc.toJson());
-							break;
-						case "qstr":
-							StringBuilder recordQuery=new StringBuilder("");
-							for(Entry<String, Object> entry:doc.entrySet()) {
-								Object value=entry.getValue();
-								if(null==value) value="null";
-								if(java.util.Date.class.isAssignableFrom(value.getClass())) {
-									recordQuery.append(entry.getKey().trim()).append("=").append(CommonUtil.transferType(value, String.class)).append("&");
-								}else{
-									recordQuery.append(entry.getKey().trim()).append("=").append(value).append("&");
-								}
-							}
-							if(0==recordQuery.length()) continue;
-							sourceToFilterChannel.put(recordQuery.deleteCharAt(recordQuery.length()-1).toString());
-							break;
-						default:
-							StringBuilder recordValues=new StringBuilder("");
-							for(Entry<String, Object> entry:doc.entrySet()) {
-								Object value=entry.getValue();
-								if(null==value) value="null";
-								if(java.util.Date.class.isAssignableFrom(value.getClass())) {
-									recordValues.append(CommonUtil.transferType(value, String.class)).append(",");
-								}else{
-									recordValues.append(value).append(",");
-								}
-							}
-							if(0==recordValues.length()) continue;
-							sourceToFilterChannel.put(recordValues.deleteCharAt(recordValues.length()-1).toString());
-					}
-				}
-				
-				if(counter<mdbConfig.batchSize && !mdbConfig.realtime) break;
-				pipeList.get(pipeList.size()-2).put("$skip",mdbConfig.startIndex=mdbConfig.startIndex+counter);
-				if(counter>=mdbConfig.batchSize) continue;
-				Thread.sleep(2000L);
+			if(mdbConfig.changeStream) {
+				changeStreamETL(sourceToFilterChannel);
+			}else if("keyset".equals(mdbConfig.pageMode) || "cursor".equals(mdbConfig.pageMode)) {
+				keysetETL(sourceToFilterChannel);
+			}else{
+				skipETL(sourceToFilterChannel);
 			}
 			
 			log.info("MongoSource plugin etl process normal exit,execute checkpoint...");
@@ -113,4 +107,248 @@ public class MdbService {
 		}
 		return true;
 	}
+	
+	/**
+	 * 按$skip/$limit分页读取数据表
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void skipETL(Channel<String> sourceToFilterChannel) throws Exception {
+		ArrayList<BasicDBObject> pipeList=mdbConfig.pipeLine;
+		MongoCollection<RawBsonDocument> collection=rawCollection;
+		while(mdbConfig.flow.sourceStart){
+			int counter=0;
+			MongoCursor<RawBsonDocument> docList=collection.aggregate(pipeList).iterator();
+			for(;docList.hasNext();counter++) sendDoc(docList.next(),null,sourceToFilterChannel);
+			
+			if(counter<mdbConfig.batchSize && !mdbConfig.realtime) break;
+			pipeList.get(pipeList.size()-2).put("$skip",mdbConfig.startIndex=mdbConfig.startIndex+counter);
+			if(counter>=mdbConfig.batchSize) continue;
+			Thread.sleep(2000L);
+		}
+	}
+	
+	/**
+	 * 按_id键集读取数据表(pageMode=keyset时每页一次查询,pageMode=cursor时每个分区使用一个长游标)
+	 * partitions大于1时按_id区间分区并行读取,每个分区独立维护检查点
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void keysetETL(Channel<String> sourceToFilterChannel) throws Exception {
+		if(null==mdbConfig.idPartitions) {
+			ArrayList<Object> bounds=samplePartitionBounds(mdbConfig.partitions);
+			log.info("collection is split into {} partitions by _id bounds: {}",bounds.size()+1,bounds);
+			mdbConfig.initIdPartitions(bounds,false);
+		}
+		
+		IdPartition[] idPartitions=mdbConfig.idPartitions;
+		if(1==idPartitions.length) {
+			readPartition(idPartitions[0],sourceToFilterChannel);
+			return;
+		}
+		
+		ExecutorService partitionExecutor=Executors.newFixedThreadPool(idPartitions.length);
+		try{
+			ArrayList<Future<?>> futureList=new ArrayList<Future<?>>();
+			for(IdPartition idPartition:idPartitions) {
+				if(idPartition.finished) {
+					log.info("partition {} is already finished,skip...",idPartition.partitionId);
+					continue;
+				}
+				
+				futureList.add(partitionExecutor.submit(()->{
+					readPartition(idPartition,sourceToFilterChannel);
+					return null;
+				}));
+			}
+			
+			for(Future<?> future:futureList) {
+				try{
+					future.get();
+				}catch(ExecutionException e) {
+					log.error("partition reader occur error...",e.getCause());
+				}
+			}
+		}finally{
+			partitionExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * 按分页模式读取单个分区
+	 * @param idPartition 分区游标
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void readPartition(IdPartition idPartition,Channel<String> sourceToFilterChannel) throws Exception {
+		if("cursor".equals(mdbConfig.pageMode)) {
+			cursorETL(idPartition,sourceToFilterChannel);
+		}else{
+			keysetETL(idPartition,sourceToFilterChannel);
+		}
+	}
+	
+	/**
+	 * 按_id键集分页读取数据表(单个分区)
+	 * 每页查询_id大于上页最后一个_id的文档,服务端按_id索引定位,每页的查询代价与页面位置无关;
+	 * 有上界的分区读取完毕后退出,无上界的分区在realtime=true时继续等待新文档
+	 * @param idPartition 分区游标
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void keysetETL(IdPartition idPartition,Channel<String> sourceToFilterChannel) throws Exception {
+		MongoCollection<RawBsonDocument> collection=rawCollection;
+		while(mdbConfig.flow.sourceStart){
+			int counter=0;
+			try(MongoCursor<RawBsonDocument> docList=collection.aggregate(getKeysetPipeLine(idPartition,true)).iterator()){
+				for(;docList.hasNext();counter++) idPartition.lastId=sendKeysetDoc(docList.next(),sourceToFilterChannel);
+			}
+			
+			if(counter>=mdbConfig.batchSize) continue;
+			if(!mdbConfig.realtime || null!=idPartition.upperId) {
+				idPartition.finished=1<mdbConfig.idPartitions.length;
+				break;
+			}
+			Thread.sleep(2000L);
+		}
+	}
+	
+	/**
+	 * 使用单个长游标读取数据表(单个分区)
+	 * 整个分区只执行一次聚合查询,batchSize作为驱动每次从服务端拉取的文档数量,游标读取完毕前不再重新规划查询;
+	 * 游标失效(如空闲超时或节点切换)时从最后一个已读_id重新打开游标,realtime=true时无上界的分区读取完毕后定期重新打开游标
+	 * @param idPartition 分区游标
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void cursorETL(IdPartition idPartition,Channel<String> sourceToFilterChannel) throws Exception {
+		MongoCollection<RawBsonDocument> collection=rawCollection;
+		while(mdbConfig.flow.sourceStart){
+			try(MongoCursor<RawBsonDocument> docList=collection.aggregate(getKeysetPipeLine(idPartition,false)).batchSize(mdbConfig.batchSize).iterator()){
+				while(mdbConfig.flow.sourceStart && docList.hasNext()) idPartition.lastId=sendKeysetDoc(docList.next(),sourceToFilterChannel);
+			}catch(MongoException e) {
+				if(!mdbConfig.flow.sourceStart) break;
+				log.warn("cursor of partition {} occur error,reopen after last _id {}: {}",idPartition.partitionId,idPartition.lastId,e.getMessage());
+				Thread.sleep(2000L);
+				continue;
+			}
+			
+			if(!mdbConfig.flow.sourceStart) break;
+			if(!mdbConfig.realtime || null!=idPartition.upperId) {
+				idPartition.finished=1<mdbConfig.idPartitions.length;
+				break;
+			}
+			Thread.sleep(2000L);
+		}
+	}
+	
+	/**
+	 * 采样计算_id分区边界
+	 * 对随机采样的文档按_id执行$bucketAuto,取各桶(第一个桶除外)的最小_id作为分区边界
+	 * @param partitions 分区数量
+	 * @return 分区边界表(升序,文档数量较少时边界数量可能少于分区数量-1)
+	 */
+	private ArrayList<Object> samplePartitionBounds(int partitions) {
+		ArrayList<Object> bounds=new ArrayList<Object>();
+		if(1>=partitions) return bounds;
+		
+		ArrayList<BasicDBObject> pipeList=new ArrayList<BasicDBObject>();
+		pipeList.add(new BasicDBObject("$sample",new BasicDBObject("size",partitions*SAMPLES_PER_PARTITION)));
+		pipeList.add(new BasicDBObject("$bucketAuto",new BasicDBObject("groupBy","$_id").append("buckets",partitions)));
+		for(Document bucket:mdbConfig.mongoCollection.aggregate(pipeList)) bounds.add(((Document)bucket.get("_id")).get("min"));
+		if(!bounds.isEmpty()) bounds.remove(0);
+		return bounds;
+	}
+	
+	/**
+	 * 按变更流(Change Stream)实时读取数据表变更
+	 * 插入、替换和更新事件输出变更后的完整文档,删除事件仅在配置opTypeField时输出(仅含_id),
+	 * 每个事件处理后记录恢复令牌,重启后从令牌位置继续读取,需要MongoDB副本集或分片集群
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void changeStreamETL(Channel<String> sourceToFilterChannel) throws Exception {
+		ArrayList<BasicDBObject> pipeLine=mdbConfig.pipeLine;
+		ChangeStreamIterable<RawBsonDocument> changeStream=rawCollection.watch(pipeLine.subList(0, pipeLine.size()-2))
+				.fullDocument(FullDocument.UPDATE_LOOKUP).batchSize(mdbConfig.batchSize).maxAwaitTime(1000L, TimeUnit.MILLISECONDS);
+		if(null!=mdbConfig.resumeToken) changeStream=changeStream.resumeAfter(mdbConfig.resumeToken);
+		
+		String opTypeField=mdbConfig.opTypeField;
+		try(MongoCursor<ChangeStreamDocument<RawBsonDocument>> eventList=changeStream.iterator()){
+			while(mdbConfig.flow.sourceStart) {
+				ChangeStreamDocument<RawBsonDocument> event=eventList.tryNext();
+				if(null==event) continue;
+				
+				OperationType operationType=event.getOperationType();
+				RawBsonDocument doc=event.getFullDocument();
+				if(OperationType.INVALIDATE==operationType) {
+					log.warn("change stream is invalidated(collection dropped or renamed),stop reading...");
+					break;
+				}
+				
+				if(null==doc && OperationType.DELETE==operationType && null!=opTypeField && null!=event.getDocumentKey()) {
+					doc=new RawBsonDocument(event.getDocumentKey(),BSON_DOCUMENT_CODEC);
+				}
+				
+				if(null!=doc) sendDoc(doc,operationType.getValue(),sourceToFilterChannel);
+				mdbConfig.resumeToken=event.getResumeToken();
+			}
+		}
+	}
+	
+	/**
+	 * 获取键集分页管道
+	 * 在用户管道(去掉末尾的$skip/$limit)之前加入_id区间过滤及_id排序,之后加入$limit
+	 * @param idPartition 分区游标(从最后一个已读_id之后读取,未读取过时从分区下界读取)
+	 * @param limit 是否加入$limit(长游标模式不限制文档数量)
+	 * @return 分页管道
+	 */
+	private ArrayList<BasicDBObject> getKeysetPipeLine(IdPartition idPartition,boolean limit) {
+		BasicDBObject idRange=new BasicDBObject();
+		if(null!=idPartition.lastId) {
+			idRange.put("$gt", idPartition.lastId);
+		}else if(null!=idPartition.lowerId) {
+			idRange.put("$gte", idPartition.lowerId);
+		}
+		if(null!=idPartition.upperId) idRange.put("$lt", idPartition.upperId);
+		
+		ArrayList<BasicDBObject> pipeLine=mdbConfig.pipeLine;
+		ArrayList<BasicDBObject> pipeList=new ArrayList<BasicDBObject>(pipeLine.size()+1);
+		if(!idRange.isEmpty()) pipeList.add(new BasicDBObject("$match",new BasicDBObject("_id",idRange)));
+		pipeList.add(new BasicDBObject("$sort",new BasicDBObject("_id",1)));
+		pipeList.addAll(pipeLine.subList(0, pipeLine.size()-2));
+		if(limit) pipeList.add(new BasicDBObject("$limit",mdbConfig.batchSize));
+		return pipeList;
+	}
+	
+	/**
+	 * 发送键集分页读取的文档到下游通道
+	 * 管道输出的文档不含_id时无法推进键集游标(将反复读取同一页),此时立即终止读取
+	 * @param doc BSON文档
+	 * @param sourceToFilterChannel 下游通道
+	 * @return 文档_id
+	 * @throws InterruptedException
+	 */
+	private Object sendKeysetDoc(RawBsonDocument doc,Channel<String> sourceToFilterChannel) throws InterruptedException {
+		Object docId=sendDoc(doc,null,sourceToFilterChannel);
+		if(null!=docId) return docId;
+		String msg="document output by selectSQL pipeline has no _id field,keyset cursor can not advance,the pipeline must keep the original _id...";
+		log.error(msg);
+		throw new RuntimeException(msg);
+	}
+	
+	/**
+	 * 按输出格式发送文档到下游通道
+	 * @param doc BSON文档
+	 * @param opType 操作类型(配置opTypeField时追加到文档中,为null时不追加)
+	 * @param sourceToFilterChannel 下游通道
+	 * @return 文档_id
+	 * @throws InterruptedException
+	 */
+	private Object sendDoc(RawBsonDocument doc,String opType,Channel<String> sourceToFilterChannel) throws InterruptedException {
+		DocEncoder encoder=docEncoder.get();
+		String record=null==opType?encoder.encode(doc, null, null):encoder.encode(doc, mdbConfig.opTypeField, opType);
+		if(null!=record) sourceToFilterChannel.put(record);
+		return encoder.docId;
+	}
 }
@@ -0,0 +1,306 @@
+package com.df.plugin.source.mongo.util;
+
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.Map.Entry;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+import com.github.lixiang2114.flow.util.CommonUtil;
+
+/**
+ * @author Lixiang
+ * @description 文档编码器
+ * 直接从BSON字节读取字段并编码为输出格式(map:字典Json、qstr:查询字串、其它:值序列),字符缓冲区在文档之间复用;
+ * 含二进制、正则表达式等少见类型的文档回退为先解码为Document再编码,两种方式的输出一致
+ * 非线程安全,每个读取线程使用独立实例
+ */
+public class DocEncoder {
+	/**
+	 * 输出数据格式
+	 */
+	private String outFormat;
+
+	/**
+	 * 查询字串及值序列缓冲区
+	 */
+	private StringBuilder textBuffer=new StringBuilder(1024);
+
+	/**
+	 * 字典Json缓冲区
+	 */
+	private StringWriter jsonBuffer=new StringWriter(1024);
+
+	/**
+	 * 最近一次编码的文档_id
+	 */
+	public Object docId;
+
+	/**
+	 * 不支持直接编码的字段值
+	 */
+	private static final Object UNSUPPORTED=new Object();
+
+	/**
+	 * 回退编码使用的文档编解码器
+	 */
+	private static final DocumentCodec DOCUMENT_CODEC=new DocumentCodec();
+
+	/**
+	 * 字典Json格式(与Document.toJson()一致)
+	 */
+	@SuppressWarnings("deprecation")
+	private static final JsonWriterSettings JSON_SETTINGS=new JsonWriterSettings();
+
+	public DocEncoder(String outFormat) {
+		this.outFormat=outFormat;
+	}
+
+	/**
+	 * 编码文档(_id字段输出为字符串)
+	 * @param doc BSON文档
+	 * @param extraName 追加的字段名(为null时不追加)
+	 * @param extraValue 追加的字段值
+	 * @return 编码后的记录,查询字串或值序列为空时返回null
+	 */
+	public String encode(RawBsonDocument doc,String extraName,Object extraValue) {
+		docId=null;
+		BsonBinaryReader reader=new BsonBinaryReader(doc.getByteBuffer().asNIO());
+		try{
+			reader.readStartDocument();
+			if("map".equals(outFormat)) {
+				if(writeJson(reader,extraName,extraValue)) return jsonBuffer.toString();
+			}else{
+				if(writeText(reader,"qstr".equals(outFormat),extraName,extraValue)) return 0==textBuffer.length()?null:textBuffer.toString();
+			}
+		}finally{
+			reader.close();
+		}
+		return encode(doc.decode(DOCUMENT_CODEC),extraName,extraValue);
+	}
+
+	/**
+	 * 编码文档(_id字段输出为字符串)
+	 * @param doc 文档
+	 * @param extraName 追加的字段名(为null时不追加)
+	 * @param extraValue 追加的字段值
+	 * @return 编码后的记录,查询字串或值序列为空时返回null
+	 */
+	public String encode(Document doc,String extraName,Object extraValue) {
+		docId=doc.get("_id");
+		if(null!=docId) doc.put("_id", docId.toString());
+		if(null!=extraName) doc.put(extraName, extraValue);
+		switch(outFormat) {
+			case "map":
+				return doc.toJson();
+			case "qstr":
+				StringBuilder recordQuery=new StringBuilder("");
+				for(Entry<String, Object> entry:doc.entrySet()) {
+					Object value=entry.getValue();
+					if(null==value) value="null";
+					if(java.util.Date.class.isAssignableFrom(value.getClass())) {
+						recordQuery.append(entry.getKey().trim()).append("=").append(CommonUtil.transferType(value, String.class)).append("&");
+					}else{
+						recordQuery.append(entry.getKey().trim()).append("=").append(value).append("&");
+					}
+				}
+				if(0==recordQuery.length()) return null;
+				return recordQuery.deleteCharAt(recordQuery.length()-1).toString();
+			default:
+				StringBuilder recordValues=new StringBuilder("");
+				for(Entry<String, Object> entry:doc.entrySet()) {
+					Object value=entry.getValue();
+					if(null==value) value="null";
+					if(java.util.Date.class.isAssignableFrom(value.getClass())) {
+						recordValues.append(CommonUtil.transferType(value, String.class)).append(",");
+					}else{
+						recordValues.append(value).append(",");
+					}
+				}
+				if(0==recordValues.length()) return null;
+				return recordValues.deleteCharAt(recordValues.length()-1).toString();
+		}
+	}
+
+	/**
+	 * 将文档写为字典Json
+	 * @param reader BSON读取器(位于文档起始处)
+	 * @param extraName 追加的字段名
+	 * @param extraValue 追加的字段值
+	 * @return 是否编码成功(含不支持的字段类型或_id不是首个字段时返回false)
+	 */
+	private boolean writeJson(BsonBinaryReader reader,String extraName,Object extraValue) {
+		jsonBuffer.getBuffer().setLength(0);
+		JsonWriter writer=new JsonWriter(jsonBuffer,JSON_SETTINGS);
+		writer.writeStartDocument();
+
+		BsonType bsonType;
+		for(int index=0;BsonType.END_OF_DOCUMENT!=(bsonType=reader.readBsonType());index++) {
+			String name=reader.readName();
+			if(name.equals(extraName)) return false;
+			if("_id".equals(name)) {
+				if(0!=index || UNSUPPORTED==(docId=readValue(reader,bsonType)) || null==docId) return false;
+				writer.writeString(name, docId.toString());
+				continue;
+			}
+
+			writer.writeName(name);
+			if(!pipeValue(reader,writer,bsonType)) return false;
+		}
+
+		if(null!=extraName) writer.writeString(extraName, null==extraValue?"null":extraValue.toString());
+		writer.writeEndDocument();
+		return true;
+	}
+
+	/**
+	 * 将文档写为查询字串或值序列
+	 * @param reader BSON读取器(位于文档起始处)
+	 * @param query 是否为查询字串
+	 * @param extraName 追加的字段名
+	 * @param extraValue 追加的字段值
+	 * @return 是否编码成功(含非标量字段时返回false)
+	 */
+	private boolean writeText(BsonBinaryReader reader,boolean query,String extraName,Object extraValue) {
+		textBuffer.setLength(0);
+		char separator=query?'&':',';
+
+		BsonType bsonType;
+		while(BsonType.END_OF_DOCUMENT!=(bsonType=reader.readBsonType())) {
+			String name=reader.readName();
+			if(name.equals(extraName)) return false;
+
+			Object value=readValue(reader,bsonType);
+			if(UNSUPPORTED==value) return false;
+			if("_id".equals(name)) {
+				if(null==(docId=value)) return false;
+				value=value.toString();
+			}
+
+			if(query) textBuffer.append(name.trim()).append('=');
+			appendText(value);
+			textBuffer.append(separator);
+		}
+
+		if(null!=extraName) {
+			if(query) textBuffer.append(extraName.trim()).append('=');
+			appendText(extraValue);
+			textBuffer.append(separator);
+		}
+		if(0!=textBuffer.length()) textBuffer.setLength(textBuffer.length()-1);
+		return true;
+	}
+
+	/**
+	 * 追加字段值文本(与Document编码方式一致:null输出为null,时间按CommonUtil转换)
+	 * @param value 字段值
+	 */
+	private void appendText(Object value) {
+		if(null==value) {
+			textBuffer.append("null");
+		}else if(value instanceof Date) {
+			textBuffer.append(CommonUtil.transferType(value, String.class));
+		}else{
+			textBuffer.append(value);
+		}
+	}
+
+	/**
+	 * 读取标量字段值
+	 * @param reader BSON读取器
+	 * @param bsonType 字段类型
+	 * @return 字段值(与Document解码类型一致),非标量或少见类型返回UNSUPPORTED
+	 */
+	private static Object readValue(BsonBinaryReader reader,BsonType bsonType) {
+		switch(bsonType) {
+			case STRING:
+				return reader.readString();
+			case INT32:
+				return reader.readInt32();
+			case INT64:
+				return reader.readInt64();
+			case DOUBLE:
+				return reader.readDouble();
+			case BOOLEAN:
+				return reader.readBoolean();
+			case OBJECT_ID:
+				return reader.readObjectId();
+			case DATE_TIME:
+				return new Date(reader.readDateTime());
+			case DECIMAL128:
+				return reader.readDecimal128();
+			case NULL:
+				reader.readNull();
+				return null;
+			default:
+				return UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * 将字段值从BSON读取器复制到Json写入器
+	 * @param reader BSON读取器
+	 * @param writer Json写入器
+	 * @param bsonType 字段类型
+	 * @return 是否复制成功(含少见类型时返回false)
+	 */
+	private static boolean pipeValue(BsonBinaryReader reader,JsonWriter writer,BsonType bsonType) {
+		switch(bsonType) {
+			case DOCUMENT:
+				reader.readStartDocument();
+				writer.writeStartDocument();
+				while(BsonType.END_OF_DOCUMENT!=(bsonType=reader.readBsonType())) {
+					writer.writeName(reader.readName());
+					if(!pipeValue(reader,writer,bsonType)) return false;
+				}
+				reader.readEndDocument();
+				writer.writeEndDocument();
+				return true;
+			case ARRAY:
+				reader.readStartArray();
+				writer.writeStartArray();
+				while(BsonType.END_OF_DOCUMENT!=(bsonType=reader.readBsonType())) {
+					if(!pipeValue(reader,writer,bsonType)) return false;
+				}
+				reader.readEndArray();
+				writer.writeEndArray();
+				return true;
+			case STRING:
+				writer.writeString(reader.readString());
+				return true;
+			case INT32:
+				writer.writeInt32(reader.readInt32());
+				return true;
+			case INT64:
+				writer.writeInt64(reader.readInt64());
+				return true;
+			case DOUBLE:
+				writer.writeDouble(reader.readDouble());
+				return true;
+			case BOOLEAN:
+				writer.writeBoolean(reader.readBoolean());
+				return true;
+			case OBJECT_ID:
+				writer.writeObjectId(reader.readObjectId());
+				return true;
+			case DATE_TIME:
+				writer.writeDateTime(reader.readDateTime());
+				return true;
+			case DECIMAL128:
+				writer.writeDecimal128(reader.readDecimal128());
+				return true;
+			case NULL:
+				reader.readNull();
+				writer.writeNull();
+				return true;
+			default:
+				return false;
+		}
+	}
+}
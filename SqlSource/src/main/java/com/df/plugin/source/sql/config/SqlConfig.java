@@ -6,19 +6,28 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.df.plugin.source.sql.dto.KeyRange;
 import com.github.lixiang2114.flow.comps.Flow;
 import com.github.lixiang2114.flow.util.CommonUtil;
 import com.github.lixiang2114.flow.util.PropertiesReader;
@@ -74,6 +83,55 @@ public class SqlConfig {
 	 */
 	public String[] phFields;
 	
+	/**
+	 * 分页模式
+	 * offset: 按phFields占位符(startIndex/batchSize/endIndex)分页
+	 * keyset: 按键列游标分页(where keyColumn>lastKey order by keyColumn)
+	 * stream: 单次查询流式读取(配置keyColumn时按键列排序并可从lastKey继续)
+	 * watermark: 按水位线列增量读取(where watermarkColumn>watermark-overlapMills order by watermarkColumn,tiebreaker)
+	 */
+	public String pageMode;
+	
+	/**
+	 * 游标分页的键列(单调递增列,结果集中的列标签)
+	 */
+	public String keyColumn;
+	
+	/**
+	 * 游标分页的决胜列(键列值不唯一时使用,与键列组合唯一)
+	 */
+	public String tiebreaker;
+	
+	/**
+	 * watermark模式下的水位线列(如更新时间列,结果集中的列标签)
+	 */
+	public String watermarkColumn;
+	
+	/**
+	 * watermark模式下每轮查询从水位线回溯的时长(用于捕获迟到记录)
+	 */
+	public Long overlapMills;
+	
+	/**
+	 * watermark模式下已读记录的最大水位线值(检查点)
+	 */
+	public volatile Object watermark;
+	
+	/**
+	 * 键列区间分区数量(每个分区使用独立连接并行读取)
+	 */
+	public Integer partitions;
+	
+	/**
+	 * 键列区间分区边界表(升序)
+	 */
+	public ArrayList<Object> partitionBounds;
+	
+	/**
+	 * 键列区间游标表(为null时需按MIN/MAX(keyColumn)计算分区边界)
+	 */
+	public KeyRange[] keyRanges;
+	
 	/**
 	 * 输出数据格式
 	 * qstr: 查询字串格式 
@@ -148,10 +206,69 @@ public class SqlConfig {
 		String connectionString=config.getProperty("connectionString","").trim();
 		this.connectionString=connectionString.isEmpty()?"jdbc:mysql://192.168.162.127:3306/test?useUnicode=true&characterEncoding=utf8&allowMultiQueries=true&useSSL=false&serverTimezone=GMT%2B8":connectionString;
 		
+		String pageModeStr=config.getProperty("pageMode","").trim();
+		this.pageMode=pageModeStr.isEmpty()?"offset":pageModeStr;
+		
+		String keyColumnStr=config.getProperty("keyColumn","").trim();
+		if(!keyColumnStr.isEmpty()) {
+			this.keyColumn=keyColumnStr;
+		}else if("keyset".equals(pageMode)) {
+			log.error("No Key Column Specified,Parameter Name: keyColumn");
+			throw new RuntimeException("No Key Column Specified,Parameter Name: keyColumn");
+		}
+		
+		String tiebreakerStr=config.getProperty("tiebreaker","").trim();
+		if(!tiebreakerStr.isEmpty()) this.tiebreaker=tiebreakerStr;
+		if("watermark".equals(pageMode) && null==tiebreaker) {
+			log.error("No Tiebreaker Specified,Parameter Name: tiebreaker");
+			throw new RuntimeException("No Tiebreaker Specified,Parameter Name: tiebreaker");
+		}
+		if("stream".equals(pageMode) && null==keyColumn) log.warn("stream mode without keyColumn can not resume from checkpoint,selectSQL will be executed only once...");
+		
+		String watermarkColumnStr=config.getProperty("watermarkColumn","").trim();
+		if(!watermarkColumnStr.isEmpty()) {
+			this.watermarkColumn=watermarkColumnStr;
+		}else if("watermark".equals(pageMode)) {
+			log.error("No Watermark Column Specified,Parameter Name: watermarkColumn");
+			throw new RuntimeException("No Watermark Column Specified,Parameter Name: watermarkColumn");
+		}
+		
+		String overlapMillsStr=config.getProperty("overlapMills","").trim();
+		this.overlapMills=overlapMillsStr.isEmpty()?5000L:Long.parseLong(overlapMillsStr);
+		this.watermark=parseKeyValue(config.getProperty("watermark","").trim(),config.getProperty("watermarkType","").trim());
+		
+		String partitionBoundsStr=config.getProperty("partitionBounds","").trim();
+		if(!partitionBoundsStr.isEmpty()) {
+			String[] bounds=COMMA_REGEX.split(partitionBoundsStr);
+			String boundType=config.getProperty("partitionBoundsType","").trim();
+			if(boundType.isEmpty() && Arrays.stream(bounds).allMatch(bound->CommonUtil.isInteger(bound.trim()))) boundType="java.lang.Long";
+			this.partitionBounds=new ArrayList<Object>();
+			for(String bound:bounds) partitionBounds.add(parseKeyValue(bound.trim(),boundType));
+		}
+		
+		String partitionsStr=config.getProperty("partitions","").trim();
+		this.partitions=partitionsStr.isEmpty()?(null==partitionBounds?1:partitionBounds.size()+1):Integer.parseInt(partitionsStr);
+		if(1<partitions && (null==keyColumn || "offset".equals(pageMode))) {
+			log.warn("partitions requires keyColumn and pageMode keyset or stream,read without partition...");
+			this.partitions=1;
+		}
+		
+		if(1==partitions) {
+			initKeyRanges(new ArrayList<Object>(),true);
+		}else if(null!=partitionBounds) {
+			if(partitionBounds.size()!=partitions-1) {
+				log.error("partitionBounds must contain partitions-1 bounds,partitions: "+partitions+",partitionBounds: "+partitionBounds.size());
+				throw new RuntimeException("partitionBounds must contain partitions-1 bounds,partitions: "+partitions+",partitionBounds: "+partitionBounds.size());
+			}
+			initKeyRanges(partitionBounds,true);
+		}
+		
 		String phFieldsStr=config.getProperty("phFields","").trim();
 		if(phFieldsStr.isEmpty()) {
-			log.error("No Placeholder Fields Specified,Parameter Name: phFields");
-			throw new RuntimeException("No Placeholder Fields Specified,Parameter Name: phFields");
+			if("offset".equals(pageMode)) {
+				log.error("No Placeholder Fields Specified,Parameter Name: phFields");
+				throw new RuntimeException("No Placeholder Fields Specified,Parameter Name: phFields");
+			}
 		}else{
 			String[] pageFields=COMMA_REGEX.split(phFieldsStr);
 			if(2>pageFields.length) {
@@ -216,10 +333,17 @@ public class SqlConfig {
 	 */
 	public Connection getConnection() throws SQLException {
 		if(null!=connection && !connection.isClosed()) return connection;
+		return connection=newConnection();
+	}
+	
+	/**
+	 * 创建新的SQL客户端连接(分区读取线程使用,由调用者关闭)
+	 */
+	public Connection newConnection() throws SQLException {
 		if(null==userName || null==passWord) {
-			return connection=DriverManager.getConnection(connectionString);
+			return DriverManager.getConnection(connectionString);
 		}else{
-			return connection=DriverManager.getConnection(connectionString, userName, passWord);
+			return DriverManager.getConnection(connectionString, userName, passWord);
 		}
 	}
 	
@@ -230,6 +354,21 @@ public class SqlConfig {
 	public void refreshCheckPoint() throws IOException{
 		OutputStream fos=null;
 		config.setProperty("startIndex",pageDict.get("startIndex").toString());
+		if(null!=keyRanges && null!=keyColumn && !"offset".equals(pageMode)) {
+			StringBuilder finishedPartitions=new StringBuilder();
+			for(KeyRange keyRange:keyRanges) {
+				setKeyValue("lastKey",keyRange.checkpointSuffix,keyRange.lastKey);
+				setKeyValue("lastTiebreaker",keyRange.checkpointSuffix,keyRange.lastTiebreaker);
+				if(keyRange.finished) finishedPartitions.append(keyRange.rangeId).append(',');
+			}
+			if(1<keyRanges.length) {
+				config.setProperty("partitions",String.valueOf(keyRanges.length));
+				config.setProperty("partitionBounds",partitionBounds.stream().map(Object::toString).collect(Collectors.joining(",")));
+				config.setProperty("partitionBoundsType",partitionBounds.get(0).getClass().getName());
+				config.setProperty("finishedPartitions",0==finishedPartitions.length()?"":finishedPartitions.substring(0, finishedPartitions.length()-1));
+			}
+		}
+		if("watermark".equals(pageMode)) setKeyValue("watermark","",watermark);
 		try{
 			fos=new FileOutputStream(new File(sourcePath,"source.properties"));
 			log.info("reflesh checkpoint...");
@@ -239,6 +378,192 @@ public class SqlConfig {
 		}
 	}
 	
+	/**
+	 * 初始化键列区间游标表
+	 * 不分区时检查点属性名为lastKey,分区时为lastKey.区间ID,已读取完毕的区间记录在finishedPartitions中
+	 * @param bounds 分区边界表(升序)
+	 * @param restore 是否从检查点恢复各区间的读取位置(分区边界重新计算时不恢复)
+	 */
+	public void initKeyRanges(ArrayList<Object> bounds,boolean restore) {
+		this.partitionBounds=bounds;
+		HashSet<String> finishedSet=new HashSet<String>(Arrays.asList(COMMA_REGEX.split(config.getProperty("finishedPartitions","").trim())));
+		KeyRange[] keyRanges=new KeyRange[bounds.size()+1];
+		for(int i=0;i<keyRanges.length;i++) {
+			Object lowerKey=0==i?null:bounds.get(i-1);
+			Object upperKey=bounds.size()==i?null:bounds.get(i);
+			keyRanges[i]=new KeyRange(i,lowerKey,upperKey,1==keyRanges.length?"":"."+i);
+			if(!restore) continue;
+			
+			String suffix=keyRanges[i].checkpointSuffix;
+			keyRanges[i].lastKey=parseKeyValue(config.getProperty("lastKey"+suffix,"").trim(),config.getProperty("lastKeyType"+suffix,"").trim());
+			keyRanges[i].lastTiebreaker=parseKeyValue(config.getProperty("lastTiebreaker"+suffix,"").trim(),config.getProperty("lastTiebreakerType"+suffix,"").trim());
+			keyRanges[i].finished=1<keyRanges.length && finishedSet.contains(String.valueOf(i));
+		}
+		this.keyRanges=keyRanges;
+	}
+	
+	/**
+	 * 获取键列取值范围SQL(用于计算分区边界)
+	 * @return 范围SQL
+	 */
+	public String getRangeSQL() {
+		return new StringBuilder("select min(").append(keyColumn).append("),max(").append(keyColumn).append(") from (").append(selectSQL).append(") range_t").toString();
+	}
+	
+	/**
+	 * 获取分页游标SQL
+	 * 将selectSQL作为子查询,按键列(及决胜列)升序读取区间内lastKey之后的记录(未读取过时从区间下界读取)
+	 * @param keyRange 键列区间游标
+	 * @param limit 是否限制为一页记录
+	 * @return 游标SQL(占位符依次为:lastKey[,lastKey,lastTiebreaker]或lowerKey,upperKey,batchSize,不存在的项省略)
+	 */
+	public String getKeysetSQL(KeyRange keyRange,boolean limit) {
+		ArrayList<String> conditions=new ArrayList<String>();
+		if(null!=keyRange.lastKey) {
+			if(null==tiebreaker) {
+				conditions.add(keyColumn+">?");
+			}else{
+				conditions.add("("+keyColumn+">? or ("+keyColumn+"=? and "+tiebreaker+">?))");
+			}
+		}else if(null!=keyRange.lowerKey) {
+			conditions.add(keyColumn+">=?");
+		}
+		if(null!=keyRange.upperKey) conditions.add(keyColumn+"<?");
+		
+		StringBuilder builder=new StringBuilder("select * from (").append(selectSQL).append(") keyset_t");
+		if(!conditions.isEmpty()) builder.append(" where ").append(String.join(" and ", conditions));
+		builder.append(" order by ").append(keyColumn);
+		if(null!=tiebreaker) builder.append(",").append(tiebreaker);
+		if(limit) builder.append(getLimitClause());
+		return builder.toString();
+	}
+	
+	/**
+	 * 获取水位线增量SQL
+	 * 将selectSQL作为子查询,按水位线列及决胜列升序读取水位线下界之后的记录(水位线列为null的记录不读取)
+	 * @param bounded 是否有水位线下界
+	 * @param next 是否为本轮的后续页(从上一页最后一条记录之后读取)
+	 * @return 水位线SQL(占位符依次为:lastMark,lastMark,lastTiebreaker或lowerBound,batchSize,不存在的项省略)
+	 */
+	public String getWatermarkSQL(boolean bounded,boolean next) {
+		StringBuilder builder=new StringBuilder("select * from (").append(selectSQL).append(") watermark_t where ");
+		if(next) {
+			builder.append("(").append(watermarkColumn).append(">? or (").append(watermarkColumn).append("=? and ").append(tiebreaker).append(">?))");
+		}else if(bounded) {
+			builder.append(watermarkColumn).append(">?");
+		}else{
+			builder.append(watermarkColumn).append(" is not null");
+		}
+		builder.append(" order by ").append(watermarkColumn).append(",").append(tiebreaker);
+		return builder.append(getLimitClause()).toString();
+	}
+	
+	/**
+	 * 获取水位线下界(水位线回溯overlapMills,数值列为列值差)
+	 * @return 水位线下界,尚未读取过记录时返回null
+	 */
+	public Object getWatermarkLowerBound() {
+		Object mark=watermark;
+		if(null==mark) return null;
+		if(mark instanceof Timestamp) {
+			Timestamp lowerBound=new Timestamp(((Timestamp)mark).getTime()-overlapMills);
+			lowerBound.setNanos((lowerBound.getNanos()/1000000)*1000000+((Timestamp)mark).getNanos()%1000000);
+			return lowerBound;
+		}
+		if(mark instanceof java.sql.Date) return new java.sql.Date(((java.sql.Date)mark).getTime()-overlapMills);
+		if(mark instanceof LocalDateTime) return ((LocalDateTime)mark).minusNanos(overlapMills*1000000L);
+		if(mark instanceof OffsetDateTime) return ((OffsetDateTime)mark).minusNanos(overlapMills*1000000L);
+		if(mark instanceof BigDecimal) return ((BigDecimal)mark).subtract(BigDecimal.valueOf(overlapMills));
+		if(mark instanceof BigInteger) return ((BigInteger)mark).subtract(BigInteger.valueOf(overlapMills));
+		if(mark instanceof Double || mark instanceof Float) return ((Number)mark).doubleValue()-overlapMills;
+		if(mark instanceof Number) return ((Number)mark).longValue()-overlapMills;
+		return mark;
+	}
+	
+	/**
+	 * 获取流式读取的拉取尺寸
+	 * MySql驱动仅在拉取尺寸为Integer.MIN_VALUE时逐行流式读取(连接参数useCursorFetch=true时使用服务端游标按batchSize拉取)
+	 * @return 拉取尺寸
+	 */
+	public int getFetchSize() {
+		String url=connectionString.toLowerCase();
+		if(url.startsWith("jdbc:mysql:") && !url.contains("usecursorfetch=true")) return Integer.MIN_VALUE;
+		return pageDict.get("batchSize");
+	}
+	
+	/**
+	 * 流式读取是否需要关闭自动提交
+	 * PostgreSQL驱动仅在非自动提交的事务中按拉取尺寸使用游标读取,否则一次性读入整个结果集
+	 * @return 是否需要关闭自动提交
+	 */
+	public boolean isCursorInTransaction() {
+		return connectionString.toLowerCase().startsWith("jdbc:postgresql:");
+	}
+	
+	/**
+	 * 获取限制结果集数量的子句(按连接字符串识别数据库方言)
+	 * @return 限制子句(占位符为batchSize)
+	 */
+	private String getLimitClause() {
+		String url=connectionString.toLowerCase();
+		if(url.startsWith("jdbc:sqlserver:") || url.startsWith("jdbc:jtds:") || url.startsWith("jdbc:oracle:") || url.startsWith("jdbc:db2:")) return " offset 0 rows fetch next ? rows only";
+		return " limit ?";
+	}
+	
+	/**
+	 * 将键值及其类型写入检查点配置
+	 * @param name 参数名
+	 * @param suffix 参数名后缀(分区序号)
+	 * @param value 键值
+	 */
+	private void setKeyValue(String name,String suffix,Object value) {
+		if(null==value) {
+			config.remove(name+suffix);
+			config.remove(name+"Type"+suffix);
+			return;
+		}
+		config.setProperty(name+suffix, value.toString());
+		config.setProperty(name+"Type"+suffix, value.getClass().getName());
+	}
+	
+	/**
+	 * 按类型名解析检查点中的键值
+	 * @param value 键值字串
+	 * @param type 类型名(为空时按字符串处理)
+	 * @return 键值,字串为空时返回null
+	 */
+	private static Object parseKeyValue(String value,String type) {
+		if(value.isEmpty()) return null;
+		switch(type) {
+			case "java.lang.Integer":
+				return Integer.valueOf(value);
+			case "java.lang.Long":
+				return Long.valueOf(value);
+			case "java.lang.Short":
+				return Short.valueOf(value);
+			case "java.lang.Double":
+				return Double.valueOf(value);
+			case "java.lang.Float":
+				return Float.valueOf(value);
+			case "java.math.BigInteger":
+				return new BigInteger(value);
+			case "java.math.BigDecimal":
+				return new BigDecimal(value);
+			case "java.sql.Timestamp":
+				return Timestamp.valueOf(value);
+			case "java.sql.Date":
+				return java.sql.Date.valueOf(value);
+			case "java.time.LocalDateTime":
+				return LocalDateTime.parse(value);
+			case "java.time.LocalDate":
+				return LocalDate.parse(value);
+			case "java.time.OffsetDateTime":
+				return OffsetDateTime.parse(value);
+			default:
+				return value;
+		}
+	}
+	
 	/**
 	 * 获取字段值
 	 * @param key 键
@@ -312,6 +637,16 @@ public class SqlConfig {
 		HashMap<String,Object> map=new HashMap<String,Object>();
 		map.put("realtime", realtime);
 		map.put("pageDict", pageDict);
+		map.put("pageMode", pageMode);
+		map.put("fetchSize", getFetchSize());
+		map.put("keyColumn", keyColumn);
+		map.put("tiebreaker", tiebreaker);
+		map.put("watermarkColumn", watermarkColumn);
+		map.put("overlapMills", overlapMills);
+		map.put("watermark", watermark);
+		map.put("partitions", partitions);
+		map.put("partitionBounds", partitionBounds);
+		if(null!=keyRanges) for(KeyRange keyRange:keyRanges) map.put("lastKey"+keyRange.checkpointSuffix, keyRange.finished?"finished":keyRange.lastKey);
 		map.put("selectSQL", selectSQL);
 		map.put("passWord", passWord);
 		map.put("userName", userName);
@@ -0,0 +1,50 @@
+package com.df.plugin.source.sql.dto;
+
+/**
+ * @author Lixiang
+ * @description 键列区间游标(每个区间使用独立连接按键列读取并维护检查点)
+ * 区间为[lowerKey,upperKey),边界为null时表示无界
+ */
+public class KeyRange {
+	/**
+	 * 区间ID
+	 */
+	public int rangeId;
+	
+	/**
+	 * 区间下界(包含)
+	 */
+	public Object lowerKey;
+	
+	/**
+	 * 区间上界(不包含)
+	 */
+	public Object upperKey;
+	
+	/**
+	 * 检查点属性名后缀(不分区时为空串,分区时为.区间ID)
+	 */
+	public String checkpointSuffix;
+	
+	/**
+	 * 最后一条已读记录的键列值
+	 */
+	public volatile Object lastKey;
+	
+	/**
+	 * 最后一条已读记录的决胜列值
+	 */
+	public volatile Object lastTiebreaker;
+	
+	/**
+	 * 区间是否已读取完毕
+	 */
+	public volatile boolean finished;
+	
+	public KeyRange(int rangeId,Object lowerKey,Object upperKey,String checkpointSuffix) {
+		this.rangeId=rangeId;
+		this.lowerKey=lowerKey;
+		this.upperKey=upperKey;
+		this.checkpointSuffix=checkpointSuffix;
+	}
+}
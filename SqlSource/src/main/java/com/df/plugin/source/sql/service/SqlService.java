@@ -1,19 +1,32 @@
 package com.df.plugin.source.sql.service;
 
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.df.plugin.source.sql.config.SqlConfig;
+import com.df.plugin.source.sql.dto.KeyRange;
+import com.df.plugin.source.sql.util.RowEncoder;
 import com.github.lixiang2114.flow.comps.Channel;
-import com.github.lixiang2114.flow.util.CommonUtil;
 
 /**
  * @author Lixiang
@@ -31,6 +44,11 @@ public class SqlService {
 	 */
 	private PreparedStatement selectStat;
 	
+	/**
+	 * watermark模式下去重表的最大容量
+	 */
+	private static final int MAX_READ_SIZE=100000;
+	
 	/**
 	 * 日志工具
 	 */
@@ -56,6 +74,33 @@ public class SqlService {
 	 */
 	public Object startManualETLProcess(Channel<String> sourceToFilterChannel) throws Exception {
 		log.info("execute sql source process...");
+		try{
+			if("keyset".equals(sqlConfig.pageMode) || "stream".equals(sqlConfig.pageMode)) {
+				rangeETL(sourceToFilterChannel);
+			}else if("watermark".equals(sqlConfig.pageMode)) {
+				watermarkETL(sourceToFilterChannel);
+			}else{
+				offsetETL(sourceToFilterChannel);
+			}
+			log.info("SqlSource plugin etl process normal exit,execute checkpoint...");
+		}catch(Exception e){
+			log.info("SqlSource plugin etl process occur Error...",e);
+		}finally{
+			try {
+				sqlConfig.refreshCheckPoint();
+			} catch (IOException e) {
+				log.error("SqlSource call refreshCheckPoint occur Error...",e);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 按phFields占位符分页读取
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void offsetETL(Channel<String> sourceToFilterChannel) throws Exception {
 		ConcurrentHashMap<String, Integer> pageDict=sqlConfig.pageDict;
 		if(null==selectStat || selectStat.isClosed()) selectStat=sqlConfig.getConnection().prepareStatement(sqlConfig.selectSQL);
 		
@@ -67,47 +112,9 @@ public class SqlService {
 			while(sqlConfig.flow.sourceStart){
 				for(int i=0;i<phFields.length;selectStat.setObject(i+1, pageDict.get(phFields[i])),i++);
 				res=selectStat.executeQuery();
-				ResultSetMetaData rsmd=res.getMetaData();
-				int fieldNum=rsmd.getColumnCount();
+				RowEncoder rowEncoder=new RowEncoder(res.getMetaData(),sqlConfig.outFormat);
 				int counter=0;
-				for(;res.next();counter++) {
-					switch(sqlConfig.outFormat) {
-						case "qstr":
-							StringBuilder recordQuery=new StringBuilder("");
-							for(int i=0;i<fieldNum;i++){
-								if(java.util.Date.class.isAssignableFrom(Class.forName(rsmd.getColumnClassName(i+1)))) {
-									recordQuery.append(rsmd.getColumnLabel(i+1).trim()).append("=").append(CommonUtil.transferType(res.getObject(i+1), String.class)).append("&");
-								}else{
-									recordQuery.append(rsmd.getColumnLabel(i+1).trim()).append("=").append(res.getObject(i+1)).append("&");
-								}
-							}
-							if(0==recordQuery.length()) continue;
-							sourceToFilterChannel.put(recordQuery.deleteCharAt(recordQuery.length()-1).toString());
-							break;
-						case "map":
-							HashMap<String,Object> recordMap=new HashMap<String,Object>();
-							for(int i=0;i<fieldNum;i++) {
-								if(java.util.Date.class.isAssignableFrom(Class.forName(rsmd.getColumnClassName(i+1)))) {
-									recordMap.put(rsmd.getColumnLabel(i+1).trim(), CommonUtil.transferType(res.getObject(i+1), String.class));
-								}else{
-									recordMap.put(rsmd.getColumnLabel(i+1).trim(), res.getObject(i+1));
-								}
-							}
-							sourceToFilterChannel.put(CommonUtil.javaToJsonStr(recordMap));
-							break;
-						default:
-							StringBuilder recordValues=new StringBuilder("");
-							for(int i=0;i<fieldNum;i++){
-								if(java.util.Date.class.isAssignableFrom(Class.forName(rsmd.getColumnClassName(i+1)))) {
-									recordValues.append(CommonUtil.transferType(res.getObject(i+1), String.class)).append(",");
-								}else{
-									recordValues.append(res.getObject(i+1)).append(",");
-								}
-							}
-							if(0==recordValues.length()) continue;
-							sourceToFilterChannel.put(recordValues.deleteCharAt(recordValues.length()-1).toString());
-					}
-				}
+				for(;res.next();counter++) sendRow(rowEncoder.encode(res),sourceToFilterChannel);
 				
 				if(null!=res) res.close();
 				selectStat.clearParameters();
@@ -118,17 +125,7 @@ public class SqlService {
 				if(counter>=batchSize) continue;
 				Thread.sleep(2000L);
 			}
-			
-			log.info("SqlSource plugin etl process normal exit,execute checkpoint...");
-		}catch(Exception e){
-			log.info("SqlSource plugin etl process occur Error...",e);
 		}finally{
-			try {
-				sqlConfig.refreshCheckPoint();
-			} catch (IOException e) {
-				log.error("SqlSource call refreshCheckPoint occur Error...",e);
-			}
-			
 			try{
 				if(null!=res) res.close();
 				if(null!=selectStat) selectStat.close();
@@ -136,6 +133,354 @@ public class SqlService {
 				log.error("SqlSource close sql stream occur Error...",e);
 			}
 		}
-		return true;
+	}
+	
+	/**
+	 * 按键列读取数据表(pageMode=keyset时逐页查询,pageMode=stream时每个区间一次流式查询)
+	 * partitions大于1时按键列区间分区,每个区间使用独立连接并行读取并独立维护检查点
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void rangeETL(Channel<String> sourceToFilterChannel) throws Exception {
+		if(null==sqlConfig.keyRanges) {
+			ArrayList<Object> bounds=computeRangeBounds(sqlConfig.partitions);
+			log.info("table is split into {} partitions by {} bounds: {}",bounds.size()+1,sqlConfig.keyColumn,bounds);
+			sqlConfig.initKeyRanges(bounds,bounds.isEmpty());
+		}
+		
+		KeyRange[] keyRanges=sqlConfig.keyRanges;
+		if(1==keyRanges.length) {
+			readRange(keyRanges[0],sqlConfig.getConnection(),sourceToFilterChannel);
+			return;
+		}
+		
+		ExecutorService rangeExecutor=Executors.newFixedThreadPool(keyRanges.length);
+		try{
+			ArrayList<Future<?>> futureList=new ArrayList<Future<?>>();
+			for(KeyRange keyRange:keyRanges) {
+				if(keyRange.finished) {
+					log.info("partition {} is already finished,skip...",keyRange.rangeId);
+					continue;
+				}
+				
+				futureList.add(rangeExecutor.submit(()->{
+					try(Connection connection=sqlConfig.newConnection()){
+						readRange(keyRange,connection,sourceToFilterChannel);
+					}
+					return null;
+				}));
+			}
+			
+			for(Future<?> future:futureList) {
+				try{
+					future.get();
+				}catch(ExecutionException e) {
+					log.error("partition reader occur error...",e.getCause());
+				}
+			}
+		}finally{
+			rangeExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * 按分页模式读取单个区间
+	 * @param keyRange 键列区间游标
+	 * @param connection 区间读取使用的连接
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void readRange(KeyRange keyRange,Connection connection,Channel<String> sourceToFilterChannel) throws Exception {
+		if("stream".equals(sqlConfig.pageMode)) {
+			streamETL(keyRange,connection,sourceToFilterChannel);
+		}else{
+			keysetETL(keyRange,connection,sourceToFilterChannel);
+		}
+	}
+	
+	/**
+	 * 按键列游标分页读取(单个区间)
+	 * 每页查询键列(及决胜列)大于最后一条已读记录的记录,查询代价与已读记录数量无关;
+	 * 有上界的区间读取完毕后退出,无上界的区间在realtime=true时继续等待新记录
+	 * @param keyRange 键列区间游标
+	 * @param connection 区间读取使用的连接
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void keysetETL(KeyRange keyRange,Connection connection,Channel<String> sourceToFilterChannel) throws Exception {
+		int batchSize=sqlConfig.pageDict.get("batchSize");
+		PreparedStatement firstStat=null;
+		PreparedStatement nextStat=null;
+		
+		try{
+			while(sqlConfig.flow.sourceStart){
+				PreparedStatement pageStat;
+				if(null==keyRange.lastKey) {
+					if(null==firstStat) firstStat=connection.prepareStatement(sqlConfig.getKeysetSQL(keyRange,true));
+					pageStat=firstStat;
+				}else{
+					if(null==nextStat) nextStat=connection.prepareStatement(sqlConfig.getKeysetSQL(keyRange,true));
+					pageStat=nextStat;
+				}
+				pageStat.setInt(setKeysetParams(pageStat,keyRange), batchSize);
+				
+				int counter=0;
+				try(ResultSet res=pageStat.executeQuery()){
+					RowEncoder rowEncoder=new RowEncoder(res.getMetaData(),sqlConfig.outFormat);
+					for(;res.next();counter++) {
+						sendRow(rowEncoder.encode(res),sourceToFilterChannel);
+						updateLastKey(res,keyRange);
+					}
+				}
+				
+				if(counter>=batchSize) continue;
+				if(!sqlConfig.realtime || null!=keyRange.upperKey) {
+					keyRange.finished=1<sqlConfig.keyRanges.length;
+					break;
+				}
+				Thread.sleep(2000L);
+			}
+		}finally{
+			try{
+				if(null!=firstStat) firstStat.close();
+				if(null!=nextStat) nextStat.close();
+			}catch(SQLException e){
+				log.error("SqlSource close sql stream occur Error...",e);
+			}
+		}
+	}
+	
+	/**
+	 * 单次查询流式读取(单个区间)
+	 * 以只进只读游标执行一次查询并按拉取尺寸逐批从服务端读取,直到结果集结束;
+	 * 配置keyColumn时按键列排序并记录lastKey,重启或realtime=true时从lastKey之后继续(仅无上界的区间继续等待新记录)
+	 * @param keyRange 键列区间游标
+	 * @param connection 区间读取使用的连接
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void streamETL(KeyRange keyRange,Connection connection,Channel<String> sourceToFilterChannel) throws Exception {
+		boolean autoCommit=connection.getAutoCommit();
+		if(autoCommit && sqlConfig.isCursorInTransaction()) connection.setAutoCommit(false);
+		
+		try{
+			while(sqlConfig.flow.sourceStart){
+				boolean keyset=null!=sqlConfig.keyColumn;
+				String streamSQL=keyset?sqlConfig.getKeysetSQL(keyRange,false):sqlConfig.selectSQL;
+				try(PreparedStatement streamStat=connection.prepareStatement(streamSQL,ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY)){
+					streamStat.setFetchSize(sqlConfig.getFetchSize());
+					if(keyset) setKeysetParams(streamStat,keyRange);
+					try(ResultSet res=streamStat.executeQuery()){
+						RowEncoder rowEncoder=new RowEncoder(res.getMetaData(),sqlConfig.outFormat);
+						while(sqlConfig.flow.sourceStart && res.next()) {
+							sendRow(rowEncoder.encode(res),sourceToFilterChannel);
+							if(keyset) updateLastKey(res,keyRange);
+						}
+					}
+				}
+				
+				if(!sqlConfig.flow.sourceStart) break;
+				if(!sqlConfig.realtime || !keyset || null!=keyRange.upperKey) {
+					keyRange.finished=1<sqlConfig.keyRanges.length;
+					break;
+				}
+				if(!connection.getAutoCommit()) connection.commit();
+				Thread.sleep(2000L);
+			}
+		}finally{
+			if(autoCommit && !connection.getAutoCommit()) {
+				connection.commit();
+				connection.setAutoCommit(true);
+			}
+		}
+	}
+	
+	/**
+	 * 按水位线列增量读取数据表
+	 * 每轮查询水位线列大于(水位线-重叠时长)的记录,按水位线列+决胜列排序并以游标分页,
+	 * 重叠区间内已读过的记录通过有界去重表跳过(仅记录位于当前水位线重叠区间内的记录),每轮的查询代价只与新增(或更新)的记录数量相关
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void watermarkETL(Channel<String> sourceToFilterChannel) throws Exception {
+		int batchSize=sqlConfig.pageDict.get("batchSize");
+		Connection connection=sqlConfig.getConnection();
+		LinkedHashMap<String,Object> readDict=new LinkedHashMap<String,Object>() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Object> eldest) {
+				return size()>MAX_READ_SIZE;
+			}
+		};
+		while(sqlConfig.flow.sourceStart) {
+			Object lowerBound=sqlConfig.getWatermarkLowerBound();
+			Object lastMark=null;
+			Object lastTiebreaker=null;
+			
+			while(sqlConfig.flow.sourceStart) {
+				int counter=0;
+				boolean next=null!=lastMark;
+				try(PreparedStatement pageStat=connection.prepareStatement(sqlConfig.getWatermarkSQL(null!=lowerBound,next))){
+					int index=1;
+					if(next) {
+						pageStat.setObject(index++, lastMark);
+						pageStat.setObject(index++, lastMark);
+						pageStat.setObject(index++, lastTiebreaker);
+					}else if(null!=lowerBound) {
+						pageStat.setObject(index++, lowerBound);
+					}
+					pageStat.setInt(index, batchSize);
+					
+					try(ResultSet res=pageStat.executeQuery()){
+						RowEncoder rowEncoder=new RowEncoder(res.getMetaData(),sqlConfig.outFormat);
+						for(;res.next();counter++) {
+							lastMark=res.getObject(sqlConfig.watermarkColumn);
+							lastTiebreaker=res.getObject(sqlConfig.tiebreaker);
+							String readKey=lastTiebreaker+"@"+lastMark;
+							if(readDict.containsKey(readKey)) continue;
+							
+							sendRow(rowEncoder.encode(res),sourceToFilterChannel);
+							if(null==sqlConfig.watermark || 0<compareMark(lastMark,sqlConfig.watermark)) sqlConfig.watermark=lastMark;
+							if(0<compareMark(lastMark,sqlConfig.getWatermarkLowerBound())) readDict.put(readKey, lastMark);
+						}
+					}
+				}
+				if(counter<batchSize) break;
+			}
+			
+			evictReadDict(readDict);
+			if(!sqlConfig.realtime) break;
+			Thread.sleep(2000L);
+		}
+	}
+	
+	/**
+	 * 清理去重表中已移出重叠区间的记录(去重表容量在写入时限制)
+	 * @param readDict 去重表(决胜列值@水位线值->水位线值)
+	 */
+	private void evictReadDict(LinkedHashMap<String,Object> readDict) {
+		Object lowerBound=sqlConfig.getWatermarkLowerBound();
+		if(null==lowerBound) return;
+		Iterator<Object> iterator=readDict.values().iterator();
+		while(iterator.hasNext()) {
+			if(0<compareMark(iterator.next(),lowerBound)) continue;
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * 比较两个水位线值(数值按数值大小比较,其它按自然顺序比较)
+	 * @param mark 水位线值
+	 * @param other 另一个水位线值
+	 * @return 比较结果
+	 */
+	private static int compareMark(Object mark,Object other) {
+		if(mark instanceof Number && other instanceof Number) return new BigDecimal(mark.toString()).compareTo(new BigDecimal(other.toString()));
+		return ((Comparable<Object>)mark).compareTo(other);
+	}
+	
+	/**
+	 * 绑定游标及区间条件参数(lastKey[,lastKey,lastTiebreaker]或lowerKey,upperKey)
+	 * @param stat 游标SQL语句
+	 * @param keyRange 键列区间游标
+	 * @return 下一个参数的序号
+	 * @throws SQLException
+	 */
+	private int setKeysetParams(PreparedStatement stat,KeyRange keyRange) throws SQLException {
+		int index=1;
+		Object lastKey=keyRange.lastKey;
+		if(null!=lastKey) {
+			stat.setObject(index++, lastKey);
+			if(null!=sqlConfig.tiebreaker) {
+				stat.setObject(index++, lastKey);
+				stat.setObject(index++, keyRange.lastTiebreaker);
+			}
+		}else if(null!=keyRange.lowerKey) {
+			stat.setObject(index++, keyRange.lowerKey);
+		}
+		if(null!=keyRange.upperKey) stat.setObject(index++, keyRange.upperKey);
+		return index;
+	}
+	
+	/**
+	 * 记录当前记录的键列值(及决胜列值)
+	 * @param res 结果集(位于当前记录)
+	 * @param keyRange 键列区间游标
+	 * @throws SQLException
+	 */
+	private void updateLastKey(ResultSet res,KeyRange keyRange) throws SQLException {
+		if(null!=sqlConfig.tiebreaker) keyRange.lastTiebreaker=res.getObject(sqlConfig.tiebreaker);
+		keyRange.lastKey=res.getObject(sqlConfig.keyColumn);
+	}
+	
+	/**
+	 * 按MIN/MAX(keyColumn)将键列取值范围等分为若干区间
+	 * 键列为整数、小数或时间类型时可以计算,其它类型或表为空时不分区
+	 * @param partitions 分区数量
+	 * @return 分区边界表(升序,不含重复值)
+	 * @throws SQLException
+	 */
+	private ArrayList<Object> computeRangeBounds(int partitions) throws SQLException {
+		ArrayList<Object> bounds=new ArrayList<Object>();
+		if(1>=partitions) return bounds;
+		
+		Object minKey=null;
+		Object maxKey=null;
+		try(PreparedStatement rangeStat=sqlConfig.getConnection().prepareStatement(sqlConfig.getRangeSQL());ResultSet res=rangeStat.executeQuery()){
+			if(res.next()) {
+				minKey=res.getObject(1);
+				maxKey=res.getObject(2);
+			}
+		}
+		if(null==minKey || null==maxKey) return bounds;
+		
+		BigDecimal min;
+		BigDecimal max;
+		boolean integral=minKey instanceof Long || minKey instanceof Integer || minKey instanceof Short || minKey instanceof Byte || minKey instanceof BigInteger;
+		if(minKey instanceof Number) {
+			min=new BigDecimal(minKey.toString());
+			max=new BigDecimal(maxKey.toString());
+			if(minKey instanceof BigDecimal) integral=0>=min.scale() && 0>=max.scale();
+		}else if(minKey instanceof java.util.Date) {
+			min=BigDecimal.valueOf(((java.util.Date)minKey).getTime());
+			max=BigDecimal.valueOf(((java.util.Date)maxKey).getTime());
+		}else if(minKey instanceof LocalDateTime) {
+			min=BigDecimal.valueOf(Timestamp.valueOf((LocalDateTime)minKey).getTime());
+			max=BigDecimal.valueOf(Timestamp.valueOf((LocalDateTime)maxKey).getTime());
+		}else{
+			log.warn("can not split {} values of type {},read without partition...",sqlConfig.keyColumn,minKey.getClass().getName());
+			return bounds;
+		}
+		
+		BigDecimal width=max.subtract(min);
+		BigDecimal count=BigDecimal.valueOf(partitions);
+		for(int i=1;i<partitions;i++) {
+			BigDecimal bound=min.add(width.multiply(BigDecimal.valueOf(i)).divide(count, 6, RoundingMode.FLOOR));
+			Object boundKey;
+			if(minKey instanceof java.util.Date || minKey instanceof LocalDateTime) {
+				boundKey=new Timestamp(bound.longValue());
+			}else if(integral) {
+				boundKey=minKey instanceof BigInteger || minKey instanceof BigDecimal?(Object)bound.toBigInteger():(Object)bound.longValue();
+			}else if(minKey instanceof BigDecimal) {
+				boundKey=bound;
+			}else{
+				boundKey=bound.doubleValue();
+			}
+			
+			if(!bounds.isEmpty() && bounds.get(bounds.size()-1).equals(boundKey)) continue;
+			if(0>=new BigDecimal(boundKey instanceof Timestamp?String.valueOf(((Timestamp)boundKey).getTime()):boundKey.toString()).compareTo(min)) continue;
+			bounds.add(boundKey);
+		}
+		return bounds;
+	}
+	
+	/**
+	 * 将编码后的记录推送到下游通道
+	 * @param record 编码后的记录(为null时忽略)
+	 * @param sourceToFilterChannel 下游通道
+	 * @throws Exception
+	 */
+	private void sendRow(String record,Channel<String> sourceToFilterChannel) throws Exception {
+		if(null!=record) sourceToFilterChannel.put(record);
 	}
 }
@@ -0,0 +1,290 @@
+package com.df.plugin.source.sql.util;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.github.lixiang2114.flow.util.CommonUtil;
+
+/**
+ * @author Lixiang
+ * @description 记录编码器
+ * 按结果集元数据一次性解析各列的标签和读取方式(整数列getLong、字符串列getString、时间列getTimestamp/getObject),
+ * 逐行直接编码为输出格式(map:字典Json、qstr:查询字串、其它:值序列),字符缓冲区在记录之间复用,
+ * 无需逐个单元格反射列类型、读取列标签及构建中间字典
+ * 非线程安全,每个读取线程的每个结果集使用独立实例
+ */
+public class RowEncoder {
+	/**
+	 * 输出数据格式
+	 */
+	private String outFormat;
+
+	/**
+	 * 输出列序号表(从1开始)
+	 */
+	private int[] columns;
+
+	/**
+	 * 输出列读取方式表
+	 */
+	private int[] getters;
+
+	/**
+	 * 输出列名表(qstr格式为"列标签=",map格式为"\"列标签\":")
+	 */
+	private String[] names;
+
+	/**
+	 * 记录缓冲区
+	 */
+	private StringBuilder buffer=new StringBuilder(1024);
+
+	/**
+	 * 整数列(getLong)
+	 */
+	private static final int LONG=1;
+
+	/**
+	 * 字符串列(getString)
+	 */
+	private static final int STRING=2;
+
+	/**
+	 * 时间戳列(getTimestamp)
+	 */
+	private static final int TIMESTAMP=3;
+
+	/**
+	 * 其它时间列(getObject)
+	 */
+	private static final int DATE=4;
+
+	/**
+	 * 其它列(getObject)
+	 */
+	private static final int OBJECT=5;
+
+	/**
+	 * Json控制字符转义表
+	 */
+	private static final String[] JSON_ESCAPES=new String[32];
+
+	static {
+		for(int i=0;i<JSON_ESCAPES.length;i++) JSON_ESCAPES[i]=String.format("\\u%04X", i);
+		JSON_ESCAPES['\b']="\\b";
+		JSON_ESCAPES['\t']="\\t";
+		JSON_ESCAPES['\n']="\\n";
+		JSON_ESCAPES['\f']="\\f";
+		JSON_ESCAPES['\r']="\\r";
+	}
+
+	/**
+	 * @param rsmd 结果集元数据
+	 * @param outFormat 输出数据格式
+	 * @throws SQLException
+	 */
+	public RowEncoder(ResultSetMetaData rsmd,String outFormat) throws SQLException {
+		this.outFormat=outFormat;
+		int fieldNum=rsmd.getColumnCount();
+		String[] labels=new String[fieldNum];
+		for(int i=0;i<fieldNum;i++) labels[i]=rsmd.getColumnLabel(i+1).trim();
+
+		ArrayList<Integer> columnList=new ArrayList<Integer>();
+		for(int i=0;i<fieldNum;i++) {
+			if("map".equals(outFormat) && Arrays.asList(labels).lastIndexOf(labels[i])!=i) continue;
+			columnList.add(i+1);
+		}
+
+		this.columns=new int[columnList.size()];
+		this.getters=new int[columnList.size()];
+		this.names=new String[columnList.size()];
+		for(int index=0;index<columns.length;index++) {
+			int column=columnList.get(index);
+			String label=labels[column-1];
+			columns[index]=column;
+			getters[index]=getGetter(rsmd.getColumnClassName(column));
+			switch(outFormat) {
+				case "map":
+					buffer.setLength(0);
+					appendJsonString(label);
+					names[index]=buffer.append(':').toString();
+					break;
+				case "qstr":
+					names[index]=label+"=";
+					break;
+				default:
+					names[index]="";
+			}
+		}
+		buffer.setLength(0);
+	}
+
+	/**
+	 * 编码结果集当前记录
+	 * @param res 结果集(位于当前记录)
+	 * @return 编码后的记录,查询字串或值序列为空时返回null
+	 * @throws SQLException
+	 */
+	public String encode(ResultSet res) throws SQLException {
+		buffer.setLength(0);
+		boolean json="map".equals(outFormat);
+		char separator="qstr".equals(outFormat)?'&':',';
+
+		if(json) buffer.append('{');
+		for(int i=0;i<columns.length;i++) {
+			if(0!=i) buffer.append(separator);
+			buffer.append(names[i]);
+			if(json) {
+				appendJson(res,i);
+			}else{
+				appendText(res,i);
+			}
+		}
+		if(json) return buffer.append('}').toString();
+		return 0==buffer.length()?null:buffer.toString();
+	}
+
+	/**
+	 * 追加字段值文本(null输出为null,时间按CommonUtil转换)
+	 * @param res 结果集
+	 * @param index 输出列索引
+	 * @throws SQLException
+	 */
+	private void appendText(ResultSet res,int index) throws SQLException {
+		int column=columns[index];
+		switch(getters[index]) {
+			case LONG:
+				long longValue=res.getLong(column);
+				if(res.wasNull()) {
+					buffer.append("null");
+				}else{
+					buffer.append(longValue);
+				}
+				return;
+			case STRING:
+				buffer.append(res.getString(column));
+				return;
+			case TIMESTAMP:
+				buffer.append(formatDate(res.getTimestamp(column)));
+				return;
+			case DATE:
+				buffer.append(formatDate(res.getObject(column)));
+				return;
+			default:
+				buffer.append(res.getObject(column));
+		}
+	}
+
+	/**
+	 * 追加字段值Json(与CommonUtil.javaToJsonStr一致,时间按CommonUtil转换为字符串)
+	 * @param res 结果集
+	 * @param index 输出列索引
+	 * @throws SQLException
+	 */
+	private void appendJson(ResultSet res,int index) throws SQLException {
+		int column=columns[index];
+		Object value;
+		switch(getters[index]) {
+			case LONG:
+				long longValue=res.getLong(column);
+				if(res.wasNull()) {
+					buffer.append("null");
+				}else{
+					buffer.append(longValue);
+				}
+				return;
+			case STRING:
+				appendJsonString(res.getString(column));
+				return;
+			case TIMESTAMP:
+				appendJsonString(formatDate(res.getTimestamp(column)));
+				return;
+			case DATE:
+				appendJsonString(formatDate(res.getObject(column)));
+				return;
+			default:
+				value=res.getObject(column);
+		}
+
+		if(null==value) {
+			buffer.append("null");
+		}else if(value instanceof String) {
+			appendJsonString((String)value);
+		}else if(value instanceof Boolean || value instanceof Integer || value instanceof Long || value instanceof BigDecimal || value instanceof BigInteger) {
+			buffer.append(value);
+		}else{
+			buffer.append(CommonUtil.javaToJsonStr(value));
+		}
+	}
+
+	/**
+	 * 追加Json字符串(含双引号)
+	 * @param str 字符串
+	 */
+	private void appendJsonString(String str) {
+		if(null==str) {
+			buffer.append("null");
+			return;
+		}
+
+		buffer.append('"');
+		int start=0;
+		for(int i=0;i<str.length();i++) {
+			char c=str.charAt(i);
+			String escape;
+			if(c<JSON_ESCAPES.length) {
+				escape=JSON_ESCAPES[c];
+			}else if('"'==c) {
+				escape="\\\"";
+			}else if('\\'==c) {
+				escape="\\\\";
+			}else{
+				continue;
+			}
+			buffer.append(str, start, i).append(escape);
+			start=i+1;
+		}
+		buffer.append(str, start, str.length()).append('"');
+	}
+
+	/**
+	 * 将时间值转换为字符串
+	 * @param value 时间值
+	 * @return 时间字符串,值为null时返回null
+	 */
+	private static String formatDate(Object value) {
+		if(null==value) return null;
+		return CommonUtil.transferType(value, String.class);
+	}
+
+	/**
+	 * 按列的Java类型确定读取方式
+	 * @param className 列的Java类名
+	 * @return 读取方式
+	 */
+	private static int getGetter(String className) {
+		if(null==className) return OBJECT;
+		switch(className) {
+			case "java.lang.Long":
+			case "java.lang.Integer":
+			case "java.lang.Short":
+			case "java.lang.Byte":
+				return LONG;
+			case "java.lang.String":
+				return STRING;
+			case "java.sql.Timestamp":
+				return TIMESTAMP;
+			default:
+				try{
+					return java.util.Date.class.isAssignableFrom(Class.forName(className))?DATE:OBJECT;
+				}catch(ClassNotFoundException e){
+					return OBJECT;
+				}
+		}
+	}
+}